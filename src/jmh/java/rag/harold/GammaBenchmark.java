@@ -0,0 +1,79 @@
+package rag.harold;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The GammaCalc variants on the rising factorials of the likelihood: a few distinct Dirichlet parameters,
+ * as there is one per haplotype subset, against read counts up to twice the depth. Each operation
+ * evaluates all the arguments once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GammaBenchmark {
+    private static final int ARGUMENTS = 4096;
+
+    @Param({"COMMONS", "ACCURATE", "FAST"})
+    GammaCalc.Mode mode;
+
+    @Param({"0", "4096", "65536"})
+    int gammaCache;
+
+    @Param({"false", "true"})
+    boolean perThread;
+
+    @Param({"100", "1000"})
+    int depth;
+
+    private GammaCalc gamma;
+    private final double[] alphaObs = new double[ARGUMENTS];
+    private final int[] counts = new int[ARGUMENTS];
+
+    @Setup
+    public void setup() {
+        gamma = GammaCalc.get(gammaCache, perThread, mode);
+        Random random = new Random(1L);
+        double[] subsets = new double[64];
+        for (int iSubset = 0; iSubset < subsets.length; iSubset++) {
+            subsets[iSubset] = Math.exp(Math.log(1.0E-3) + random.nextDouble() * Math.log(1.0E6));
+        }
+        for (int i = 0; i < ARGUMENTS; i++) {
+            alphaObs[i] = subsets[random.nextInt(subsets.length)];
+            counts[i] = 1 + random.nextInt(2 * depth);
+        }
+    }
+
+    @Benchmark
+    public double logGamma() {
+        double total = 0.0;
+        for (int i = 0; i < ARGUMENTS; i++) {
+            total += gamma.logGamma(alphaObs[i] + counts[i]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double logRisingFactorial() {
+        double total = 0.0;
+        for (int i = 0; i < ARGUMENTS; i++) {
+            total += gamma.logRisingFactorial(alphaObs[i], counts[i]);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,101 @@
+package rag.harold;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-site likelihood kernels over synthetic variable sites. Each operation is one pass over all the sites.
+ * The E-step and site log-likelihood benchmarks change the frequencies first, so every log-gamma and
+ * assignment term is computed afresh as in the optimisers; the assignment benchmark reads a filled
+ * log-gamma table. The pruned E-step runs on a copy of the sites with a --prune-margin of 30.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LikelihoodBenchmark {
+    @Param({"2", "3", "4", "5", "6"})
+    int nHaplo;
+
+    @Param({"2", "6"})
+    int timePoints;
+
+    @Param({"100", "1000"})
+    int depth;
+
+    @Param({"0", "65536"})
+    int gammaCache;
+
+    @Param({"1000"})
+    int sites;
+
+    private SyntheticSites data;
+    private SyntheticSites pruned;
+
+    @Setup
+    public void setup() {
+        data = new SyntheticSites(nHaplo, timePoints, sites, depth,
+                GammaCalc.get(gammaCache, false, GammaCalc.Mode.ACCURATE), 1L);
+        pruned = new SyntheticSites(nHaplo, timePoints, sites, depth,
+                GammaCalc.get(gammaCache, false, GammaCalc.Mode.ACCURATE), 1L);
+        pruned.site.setPruneMargin(30.0);
+    }
+
+    @Benchmark
+    public double assignmentLogLikelihood() {
+        double total = 0.0;
+        for (int iSite : data.sites) {
+            Assignment[] local = data.assignmentsByMask[data.table.presentBase[iSite]];
+            for (int iTimePoint = 0; iTimePoint < data.nTimePoints; iTimePoint++) {
+                int slotOffset = data.logGamma.slotOffset(iSite, iTimePoint);
+                for (Assignment assignment : local) {
+                    total += assignment.computeAssignmentLogLikelihood(data.logGamma, iTimePoint, slotOffset);
+                }
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double assignHaplotypes() {
+        data.nextParams();
+        double total = 0.0;
+        for (int iSite : data.sites) {
+            total += data.site.assignHaplotypes(iSite, data.priors);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double assignHaplotypesPruned() {
+        pruned.nextParams();
+        double total = 0.0;
+        for (int iSite : pruned.sites) {
+            total += pruned.site.assignHaplotypes(iSite, pruned.priors);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double siteLogLikelihood() {
+        data.nextParams();
+        double total = 0.0;
+        for (int iSite : data.sites) {
+            total += data.site.computeSiteLogLikelihood(iSite, data.priors);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,96 @@
+package rag.harold;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the memory-mapped parser and the readLine()/split() reference path on the count files
+ * listed in countFile (relative to the directory the benchmarks are run from), reported per second as
+ * passes over the list and as bytes. Both parsers must agree on every file before either is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserThroughputBenchmark {
+    public enum Parser {MAPPED, SPLIT}
+
+    @Param({"example/filelist"})
+    String countFile;
+
+    @Param({"MAPPED", "SPLIT"})
+    Parser parser;
+
+    private final List<Path> files = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+
+    /**
+     * Bytes parsed, reported per second alongside the passes
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Path list = Paths.get(countFile).toAbsolutePath();
+        for (String name : Files.readAllLines(list)) {
+            Path file = list.getParent().resolve(name);
+            if (!Files.isRegularFile(file)) {
+                throw new IOException("Count file " + file + " of " + list + " not found; give another list with -p countFile=...");
+            }
+            files.add(file);
+            sizes.add(Files.size(file));
+
+            ReadCountParser.Block mapped = ReadCountParser.parse(file);
+            ReadCountParser.Block split = ReadCountParser.parseLines(file);
+            if (mapped.size != split.size
+                    || !Arrays.equals(Arrays.copyOf(mapped.position, mapped.size), Arrays.copyOf(split.position, split.size))
+                    || !Arrays.equals(Arrays.copyOf(mapped.strandReads, mapped.size * SiteTable.STRAND_BASES),
+                    Arrays.copyOf(split.strandReads, split.size * SiteTable.STRAND_BASES))) {
+                throw new IllegalStateException("Parsers disagree on " + file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int parse(Bytes counter) throws IOException {
+        int rows = 0;
+        for (int iFile = 0; iFile < files.size(); iFile++) {
+            ReadCountParser.Block block = parser == Parser.MAPPED
+                    ? ReadCountParser.parse(files.get(iFile)) : ReadCountParser.parseLines(files.get(iFile));
+            rows += block.size;
+            counter.bytes += sizes.get(iFile);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,115 @@
+package rag.harold;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Variable sites with random reads, and the likelihood kernels over them, for the benchmarks. Most sites
+ * have two bases, some three or four, as at the variable sites of real samples.
+ */
+final class SyntheticSites {
+    final int nHaplo;
+    final int nTimePoints;
+    final int nSites;
+    final int[] sites;  // every row of table
+    final SiteTable table;
+    final Assignment[][] assignmentsByMask;
+    final LogGammaTable logGamma;
+    final Site site;
+    final double[] priors = new double[5];
+    private final double[][][] piHap = new double[2][][];  // two sets of frequencies, see nextParams()
+    private final double[] alphaParams = {Constants.DEFAULT_ALPHA_0, Constants.DEFAULT_ALPHA_1};
+    private int iParams = 0;
+
+    SyntheticSites(int nHaplo, int nTimePoints, int nSites, int depth, GammaCalc gammaCalc, long seed) {
+        this.nHaplo = nHaplo;
+        this.nTimePoints = nTimePoints;
+        this.nSites = nSites;
+        Random random = new Random(seed);
+
+        table = new SiteTable(nTimePoints, nSites);
+        sites = new int[nSites];
+        int[] counts = new int[SiteTable.STRAND_BASES];
+        for (int iSite = 0; iSite < nSites; iSite++) {
+            sites[iSite] = table.addSite(iSite + 1);
+            double u = random.nextDouble();
+            int nBases = u < 0.8 ? 2 : u < 0.95 ? 3 : 4;
+            int[] bases = new int[nBases];
+            for (int iBase = 0; iBase < nBases; iBase++) {
+                bases[iBase] = (iSite + iBase) % Constants.MAX_BASES;
+            }
+            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+                int siteDepth = (int) (depth * (0.5 + random.nextDouble()));
+                double minorFreq = 0.02 + 0.48 * random.nextDouble();
+                Arrays.fill(counts, 0);
+                for (int iRead = 0; iRead < siteDepth; iRead++) {
+                    int base = random.nextDouble() < minorFreq ? bases[1 + random.nextInt(nBases - 1)] : bases[0];
+                    counts[4 * random.nextInt(2) + base]++;
+                }
+                table.addTimePoint(iSite, iTimePoint, counts, 0);
+            }
+        }
+
+        int[] nAssignDiffBases = new int[5];
+        ArrayList<Assignment> assignments = new ArrayList<>();
+        for (int iAssign = 0; iAssign < pow4(nHaplo); iAssign++) {
+            Assignment assignment = new Assignment(iAssign, nHaplo, false);
+            assignments.add(assignment);
+            nAssignDiffBases[assignment.nPresent]++;
+        }
+        assignmentsByMask = new Assignment[16][];
+        for (int mask = 0; mask < assignmentsByMask.length; mask++) {
+            ArrayList<Assignment> compatible = new ArrayList<>();
+            for (Assignment assignment : assignments) {
+                if ((assignment.presentMask & ~mask) == 0) {
+                    compatible.add(assignment);
+                }
+            }
+            assignmentsByMask[mask] = compatible.toArray(new Assignment[0]);
+        }
+        priors[1] = Math.log(0.9 / nAssignDiffBases[1]);
+        priors[2] = Math.log(0.07 / nAssignDiffBases[2]);
+        priors[3] = Math.log(0.02 / (nAssignDiffBases[3] + 1.0E-20));
+        priors[4] = Math.log(0.01 / (nAssignDiffBases[4] + 1.0E-20));
+
+        for (int iParams = 0; iParams < 2; iParams++) {
+            piHap[iParams] = new double[nTimePoints][nHaplo];
+            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+                double total = 0.0;
+                for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
+                    piHap[iParams][iTimePoint][iHaplo] = 1.0 + iHaplo + random.nextDouble();
+                    total += piHap[iParams][iTimePoint][iHaplo];
+                }
+                for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
+                    piHap[iParams][iTimePoint][iHaplo] /= total;
+                }
+            }
+        }
+
+        StateStore store = StateStore.heap();
+        logGamma = new LogGammaTable(table, sites, nHaplo, gammaCalc, store);
+        site = new Site(table, nHaplo, assignmentsByMask, logGamma, sites, store);
+        logGamma.setParams(piHap[0], alphaParams);
+        for (int iSite : sites) {
+            site.assignHaplotypes(iSite, priors);
+        }
+    }
+
+    /**
+     * Switches to the other set of frequencies, so that every log-gamma term and cached assignment term has
+     * to be computed again, as after each step of the optimisers
+     */
+    void nextParams() {
+        iParams = 1 - iParams;
+        logGamma.setParams(piHap[iParams], alphaParams);
+    }
+
+    private static int pow4(int n) {
+        int power = 1;
+        for (int i = 0; i < n; i++) {
+            power *= Constants.MAX_BASES;
+        }
+        return power;
+    }
+}
@@ -1,5 +1,6 @@
 package rag.harold;
 
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 /**
@@ -7,89 +8,76 @@ import java.util.Arrays;
  */
 public class Assignment {
 
-    private final GammaCalc gamma;
     private final boolean verbose;
     int[] assign = null;
-    boolean[] presentBase = new boolean[4];
+    int presentMask = 0;  // bit mask of the bases used by this assignment
+    int[] baseMask = new int[4];  // [base] bit mask of the haplotypes assigned that base
     int nPresent = 0;
     private int nHaplo = 0;
     private int nAbsent = 0;
-    private int nTimePoints = 0;
-    private double[][] currentPiNuc = null;
-    private double[][] currentAlphaObs = null;
-    private double[] currentSumAlphaObs = null;
-    private double currentAlpha0 = 0.0;
-    private double currentAlphaE = 0.0;
 
-    Assignment(int iAssign, int nHaplo, GammaCalc gammaCalc, boolean verbose) {
-        this.gamma = gammaCalc;
+    Assignment(int iAssign, int nHaplo, boolean verbose) {
         this.nHaplo = nHaplo;
         this.verbose = verbose;
         assign = new int[nHaplo];
         for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {    // Loop over possible haplotypes
             assign[iHaplo] = (iAssign / pow(Constants.MAX_BASES, iHaplo)) % (Constants.MAX_BASES);
-            presentBase[assign[iHaplo]] = true;
-        }
-        for (int iBase = 0; iBase < 4; iBase++) {
-            if (presentBase[iBase]) {
-                nPresent++;
-            }
+            presentMask |= 1 << assign[iHaplo];
+            baseMask[assign[iHaplo]] |= 1 << iHaplo;
         }
+        nPresent = Integer.bitCount(presentMask);
         nAbsent = 4 - nPresent;
         if (this.verbose) {
             System.out.println(iAssign + "\t" + Arrays.toString(assign));
         }
     }
 
-    void setAllParams(double[][] piHap, double[] alphaParams) {
-        nTimePoints = piHap.length;
-        currentPiNuc = new double[nTimePoints][4];
-        currentAlphaObs = new double[nTimePoints][4];
-        currentSumAlphaObs = new double[nTimePoints];
-        currentAlpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
-        currentAlphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
-        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-            setPiHap(iTimePoint, piHap[iTimePoint]);
+    /**
+     * Log-likelihood of the base reads of one site and timepoint, excluding the strand-total term shared by
+     * all assignments (LogGammaTable.strandTerm); slotOffset locates the site's read-count slots
+     */
+    double computeAssignmentLogLikelihood(LogGammaTable logGamma, int iTimePoint, int slotOffset) {
+        double logLikelihood = 0.0;
+        IntBuffer slot = logGamma.slot;
+        for (int iStrand = 0; iStrand < 2; iStrand++) {
+            for (int iBase = 0; iBase < 4; iBase++) {
+                int iSlot = slot.get(slotOffset + 4 * iStrand + iBase);
+                if (iSlot >= 0) {
+                    logLikelihood += logGamma.get(iTimePoint, baseMask[iBase], iSlot);
+                }
+            }
         }
+        return logLikelihood;
     }
 
-    void setSinglePiHap(int iTimePoint, double[] piHap) {
-        Arrays.fill(currentPiNuc[iTimePoint], 0.0);
-        Arrays.fill(currentAlphaObs[iTimePoint], 0.0);
-        currentSumAlphaObs[iTimePoint] = 0.0;
-        setPiHap(iTimePoint, piHap);
-    }
 
-    void setPiHap(int iTimePoint, double[] piHap) {
-        for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
-            currentPiNuc[iTimePoint][assign[iHaplo]] += piHap[iHaplo];
-        }
+    /**
+     * Adds weight times the derivative of computeAssignmentLogLikelihood with respect to each haplotype's
+     * frequency to gradient, using baseDerivative as scratch
+     */
+    void addGradient(LogGammaTable logGamma, int iTimePoint, int slotOffset, double weight, double[] gradient,
+                     double[] baseDerivative) {
+        IntBuffer slot = logGamma.slot;
         for (int iBase = 0; iBase < 4; iBase++) {
-            currentAlphaObs[iTimePoint][iBase]
-                    = currentPiNuc[iTimePoint][iBase] * currentAlpha0
-                    + (1.0 - currentPiNuc[iTimePoint][iBase]) * currentAlphaE;
-            currentSumAlphaObs[iTimePoint] += currentAlphaObs[iTimePoint][iBase];
-        }
-    }
-
-    double computeAssignmentLogLikelihood(int iTimePoint, int[][] strandReads, int[] reads, int[] totStrand, boolean siteConserved) {
-        double[] logLikelihoodStrand = new double[2];
-        double g1 = this.gamma.logGamma(currentSumAlphaObs[iTimePoint]);
-        double[] currentAlphaObs_iTimePoint = currentAlphaObs[iTimePoint];
-
-        for (int iStrand = 0; iStrand < 2; iStrand++) {
-            logLikelihoodStrand[iStrand] = g1 - this.gamma.logGamma(currentSumAlphaObs[iTimePoint] + totStrand[iStrand]);
-            for (int iBase = 0; iBase < 4; iBase++) {
-                if (strandReads[iStrand][iBase] > 0) {
-                    logLikelihoodStrand[iStrand] += this.gamma.logGamma(currentAlphaObs_iTimePoint[iBase] + strandReads[iStrand][iBase])
-                            - this.gamma.logGamma(currentAlphaObs_iTimePoint[iBase]);
+            baseDerivative[iBase] = 0.0;
+            if (presentBase(iBase)) {
+                for (int iStrand = 0; iStrand < 2; iStrand++) {
+                    int iSlot = slot.get(slotOffset + 4 * iStrand + iBase);
+                    if (iSlot >= 0) {
+                        baseDerivative[iBase] += logGamma.getDerivative(iTimePoint, baseMask[iBase], iSlot);
+                    }
                 }
             }
         }
-        double logFitness = logLikelihoodStrand[0] + logLikelihoodStrand[1];
-        return logFitness;
+        double slope = weight * logGamma.getAlphaSlope();
+        for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
+            gradient[iHaplo] += slope * baseDerivative[assign[iHaplo]];
+        }
     }
 
+    private boolean presentBase(int iBase) {
+        return (presentMask & (1 << iBase)) != 0;
+    }
 
     int pow(int a, int b) {  // Computes powers
         if (b == 0) return 1;
@@ -0,0 +1,201 @@
+package rag.harold;
+
+import java.util.Arrays;
+
+/**
+ * Limited-memory BFGS minimiser within box bounds, for objectives that supply their gradient.
+ * <p>
+ * Each iteration takes the quasi-Newton direction from the last few curvature pairs, zeroes the variables
+ * held at a bound by a gradient pointing out of the box, and backtracks along the path projected onto the
+ * box until the Armijo condition holds. Pairs without positive curvature are dropped, and steepest descent
+ * is used whenever the direction is not downhill. It stops when the projected gradient, the step or the
+ * relative change in the objective falls below its tolerance.
+ */
+class BoundedLbfgs {
+    private static final double ARMIJO = 1.0E-4;
+    private static final int MAX_BACKTRACK = 40;
+
+    interface Objective {
+        /**
+         * Returns the objective at point, writing its gradient into gradient
+         */
+        double valueAndGradient(double[] point, double[] gradient);
+    }
+
+    private final int memory;
+    private final double relativeTolerance;
+    private final double stepTolerance;
+    private final double gradientTolerance;
+    private final int maxEvaluations;
+    private int evaluations = 0;
+
+    /**
+     * @param memory            number of curvature pairs kept
+     * @param relativeTolerance stop when an iteration changes the objective by less than this fraction
+     * @param stepTolerance     stop when no variable moves by more than this
+     * @param gradientTolerance stop when no component of the projected gradient exceeds this
+     * @param maxEvaluations    stop after this many objective evaluations
+     */
+    BoundedLbfgs(int memory, double relativeTolerance, double stepTolerance, double gradientTolerance, int maxEvaluations) {
+        this.memory = memory;
+        this.relativeTolerance = relativeTolerance;
+        this.stepTolerance = stepTolerance;
+        this.gradientTolerance = gradientTolerance;
+        this.maxEvaluations = maxEvaluations;
+    }
+
+    /**
+     * Minimises objective from start within [lower, upper], returning the best point found
+     */
+    double[] optimise(Objective objective, double[] start, double[] lower, double[] upper) {
+        int n = start.length;
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = clamp(start[i], lower[i], upper[i]);
+        }
+        double[] gradient = new double[n];
+        double f = evaluate(objective, x, gradient);
+
+        double[][] s = new double[memory][n];
+        double[][] y = new double[memory][n];
+        double[] rho = new double[memory];
+        int nPairs = 0;
+        int newest = -1;
+
+        double[] projected = new double[n];
+        double[] direction = new double[n];
+        double[] alpha = new double[memory];
+        double[] trial = new double[n];
+        double[] trialGradient = new double[n];
+        double[] stepTaken = new double[n];
+        double[] gradientChange = new double[n];
+
+        while (evaluations < maxEvaluations) {
+            double maxProjected = 0.0;
+            for (int i = 0; i < n; i++) {
+                boolean held = (x[i] <= lower[i] && gradient[i] > 0.0) || (x[i] >= upper[i] && gradient[i] < 0.0);
+                projected[i] = held ? 0.0 : gradient[i];
+                maxProjected = Math.max(maxProjected, Math.abs(projected[i]));
+            }
+            if (maxProjected <= gradientTolerance) {
+                break;
+            }
+
+            // Two-loop recursion on the free variables
+            System.arraycopy(projected, 0, direction, 0, n);
+            for (int k = 0; k < nPairs; k++) {
+                int iPair = Math.floorMod(newest - k, memory);
+                alpha[iPair] = rho[iPair] * dot(s[iPair], direction);
+                axpy(-alpha[iPair], y[iPair], direction);
+            }
+            if (nPairs > 0) {
+                scale(dot(s[newest], y[newest]) / dot(y[newest], y[newest]), direction);
+            }
+            for (int k = nPairs - 1; k >= 0; k--) {
+                int iPair = Math.floorMod(newest - k, memory);
+                double beta = rho[iPair] * dot(y[iPair], direction);
+                axpy(alpha[iPair] - beta, s[iPair], direction);
+            }
+            double maxDirection = 0.0;
+            for (int i = 0; i < n; i++) {
+                direction[i] = projected[i] == 0.0 ? 0.0 : -direction[i];
+                maxDirection = Math.max(maxDirection, Math.abs(direction[i]));
+            }
+            if (dot(direction, projected) >= 0.0) {   // Not downhill, restart from steepest descent
+                nPairs = 0;
+                maxDirection = 0.0;
+                for (int i = 0; i < n; i++) {
+                    direction[i] = -projected[i];
+                    maxDirection = Math.max(maxDirection, Math.abs(direction[i]));
+                }
+            }
+
+            // Without curvature information, first try a step moving no variable more than a tenth of its range
+            double step = 1.0;
+            if (nPairs == 0) {
+                for (int i = 0; i < n; i++) {
+                    step = Math.min(step, 0.1 * (upper[i] - lower[i]) / maxDirection);
+                }
+            }
+            double trialF = Double.NaN;
+            boolean accepted = false;
+            for (int iBacktrack = 0; iBacktrack < MAX_BACKTRACK && evaluations < maxEvaluations; iBacktrack++) {
+                double decrease = 0.0;
+                for (int i = 0; i < n; i++) {
+                    trial[i] = clamp(x[i] + step * direction[i], lower[i], upper[i]);
+                    decrease += gradient[i] * (trial[i] - x[i]);
+                }
+                trialF = evaluate(objective, trial, trialGradient);
+                if (trialF <= f + ARMIJO * decrease) {
+                    accepted = true;
+                    break;
+                }
+                step *= 0.5;
+            }
+            if (!accepted) {
+                break;
+            }
+
+            double maxStep = 0.0;
+            for (int i = 0; i < n; i++) {
+                stepTaken[i] = trial[i] - x[i];
+                gradientChange[i] = trialGradient[i] - gradient[i];
+                maxStep = Math.max(maxStep, Math.abs(stepTaken[i]));
+            }
+            double curvature = dot(stepTaken, gradientChange);
+            if (curvature > 1.0E-10 * Math.sqrt(dot(stepTaken, stepTaken) * dot(gradientChange, gradientChange))) {
+                newest = (newest + 1) % memory;   // Replaces the oldest pair once memory is full
+                System.arraycopy(stepTaken, 0, s[newest], 0, n);
+                System.arraycopy(gradientChange, 0, y[newest], 0, n);
+                rho[newest] = 1.0 / curvature;
+                nPairs = Math.min(nPairs + 1, memory);
+            }
+
+            double change = f - trialF;
+            System.arraycopy(trial, 0, x, 0, n);
+            System.arraycopy(trialGradient, 0, gradient, 0, n);
+            f = trialF;
+            if (change <= relativeTolerance * Math.max(1.0, Math.abs(f)) || maxStep <= stepTolerance) {
+                break;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Number of objective evaluations made by this optimiser so far
+     */
+    int getEvaluations() {
+        return evaluations;
+    }
+
+    private double evaluate(Objective objective, double[] point, double[] gradient) {
+        evaluations++;
+        Arrays.fill(gradient, 0.0);
+        return objective.valueAndGradient(Arrays.copyOf(point, point.length), gradient);
+    }
+
+    private static double clamp(double value, double lower, double upper) {
+        return Math.max(lower, Math.min(upper, value));
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static void axpy(double a, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    private static void scale(double a, double[] x) {
+        for (int i = 0; i < x.length; i++) {
+            x[i] *= a;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package rag.harold;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Optimisation state of a run, written to a file after every round of frequency optimisation of a cluster
+ * and after every outer iteration, so that --resume carries on from the last one written.
+ * <p>
+ * Layout (little-endian): magic, version, completed outer iterations, number of clusters, whether the run
+ * had converged, total log-likelihood and alpha parameters of the last completed iteration, then per
+ * cluster: nHaplo, nTimePoints, number of assignment probabilities stored, whether it is part way through
+ * Cluster.run and the log-likelihoods of its last two rounds if so, alpha parameters, hapParams, priors and
+ * the assignment probabilities of each variable site pattern. The probabilities are only stored at the end of an outer iteration, when
+ * every cluster is idle; part way through a run the next E-step recomputes them from the parameters. Each
+ * write goes to a temporary file that is then moved into place, so a run stopped at any moment leaves the
+ * previous checkpoint or the new one.
+ */
+class Checkpoint {
+    private static final long MAGIC = 0x4841524F4C44434BL;  // "HAROLDCK"
+    private static final int VERSION = 2;  // 2: probabilities per variable site pattern rather than per row
+
+    private final Path file;
+    private int iteration = 0;  // Outer iterations completed
+    private boolean converged = false;  // after the last of them
+    private double total = Double.NEGATIVE_INFINITY;  // Total log-likelihood after the last of them
+    private double[] alphaParams = new double[2];
+    private final ClusterState[] clusters;
+
+    /**
+     * State of one cluster
+     */
+    static final class ClusterState {
+        final int nHaplo;
+        final double[][] hapParams;
+        final double[] alphaParams;
+        final double[] priors;
+        final boolean inRun;  // part way through Cluster.run, after a round with these log-likelihoods
+        final double currentLogLikelihood;
+        final double previousLogLikelihood;
+        private DoubleBuffer probabilities;  // assignment probabilities, or null
+
+        ClusterState(int nHaplo, double[][] hapParams, double[] alphaParams, double[] priors, boolean inRun,
+                     double currentLogLikelihood, double previousLogLikelihood, DoubleBuffer probabilities) {
+            this.nHaplo = nHaplo;
+            this.hapParams = new double[hapParams.length][];
+            for (int iTimePoint = 0; iTimePoint < hapParams.length; iTimePoint++) {
+                this.hapParams[iTimePoint] = hapParams[iTimePoint].clone();
+            }
+            this.alphaParams = alphaParams.clone();
+            this.priors = priors.clone();
+            this.inRun = inRun;
+            this.currentLogLikelihood = currentLogLikelihood;
+            this.previousLogLikelihood = previousLogLikelihood;
+            this.probabilities = probabilities;
+        }
+
+        /**
+         * Stored assignment probabilities, or null
+         */
+        DoubleBuffer getProbabilities() {
+            return probabilities == null ? null : probabilities.duplicate();
+        }
+
+        private int probabilityCount() {
+            return probabilities == null ? 0 : probabilities.capacity();
+        }
+
+        private long bytes() {
+            return 4 * 4 + 8 * 2 + 8 * 2 + 8L * hapParams.length * (nHaplo - 1) + 8 * priors.length
+                    + 8L * probabilityCount();
+        }
+    }
+
+    Checkpoint(Path file, int nClusters) {
+        this.file = file;
+        this.clusters = new ClusterState[nClusters];
+    }
+
+    /**
+     * Reads the checkpoint in file, or returns null if there is none
+     */
+    static Checkpoint load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint " + file + " is over the 2 GB limit of one mapping");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < 16 || buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            int iteration = buffer.getInt();
+            Checkpoint checkpoint = new Checkpoint(file, buffer.getInt());
+            checkpoint.iteration = iteration;
+            checkpoint.converged = buffer.getInt() != 0;
+            checkpoint.total = buffer.getDouble();
+            checkpoint.alphaParams = getDoubles(buffer, 2);
+            for (int iCluster = 0; iCluster < checkpoint.clusters.length; iCluster++) {
+                int nHaplo = buffer.getInt();
+                int nTimePoints = buffer.getInt();
+                int nProbabilities = buffer.getInt();
+                boolean inRun = buffer.getInt() != 0;
+                double currentLogLikelihood = buffer.getDouble();
+                double previousLogLikelihood = buffer.getDouble();
+                double[] alphaParams = getDoubles(buffer, 2);
+                double[][] hapParams = new double[nTimePoints][];
+                for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+                    hapParams[iTimePoint] = getDoubles(buffer, nHaplo - 1);
+                }
+                double[] priors = getDoubles(buffer, 5);
+                DoubleBuffer probabilities = null;
+                if (nProbabilities > 0) {
+                    ByteBuffer view = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    ((Buffer) view).limit(8 * nProbabilities);
+                    probabilities = view.asDoubleBuffer();
+                    ((Buffer) buffer).position(buffer.position() + 8 * nProbabilities);
+                }
+                checkpoint.clusters[iCluster] = new ClusterState(nHaplo, hapParams, alphaParams, priors, inRun,
+                        currentLogLikelihood, previousLogLikelihood, probabilities);
+            }
+            return checkpoint;
+        }
+    }
+
+    int getIteration() {
+        return iteration;
+    }
+
+    boolean isConverged() {
+        return converged;
+    }
+
+    double getTotal() {
+        return total;
+    }
+
+    double[] getAlphaParams() {
+        return alphaParams.clone();
+    }
+
+    int getClusterCount() {
+        return clusters.length;
+    }
+
+    ClusterState getCluster(int iCluster) {
+        return clusters[iCluster];
+    }
+
+    /**
+     * Records the state of one cluster after a round of Cluster.run, leaving the others as they were
+     */
+    synchronized void saveRound(int iCluster, ClusterState state) {
+        clusters[iCluster] = state;
+        for (ClusterState cluster : clusters) {
+            cluster.probabilities = null;   // those of the last iteration no longer match a cluster that has run
+        }
+        write();
+    }
+
+    /**
+     * Records the end of an outer iteration, or the start of the run, with the state of every cluster
+     */
+    synchronized void saveIteration(int iteration, boolean converged, double total, double[] alphaParams,
+                                    ClusterState[] states) {
+        this.iteration = iteration;
+        this.converged = converged;
+        this.total = total;
+        this.alphaParams = alphaParams.clone();
+        System.arraycopy(states, 0, clusters, 0, clusters.length);
+        write();
+        for (ClusterState state : clusters) {
+            state.probabilities = null;   // only valid until the clusters run again
+        }
+    }
+
+    private void write() {
+        long size = 8 + 4 * 4 + 8 * 3;
+        for (ClusterState state : clusters) {
+            size += state.bytes();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException(String.format("Checkpoint of %d bytes is over the 2 GB limit of one mapping", size));
+        }
+        try {
+            Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putLong(MAGIC).putInt(VERSION).putInt(iteration).putInt(clusters.length)
+                            .putInt(converged ? 1 : 0);
+                    buffer.putDouble(total);
+                    putDoubles(buffer, alphaParams);
+                    for (ClusterState state : clusters) {
+                        buffer.putInt(state.nHaplo).putInt(state.hapParams.length).putInt(state.probabilityCount())
+                                .putInt(state.inRun ? 1 : 0);
+                        buffer.putDouble(state.currentLogLikelihood).putDouble(state.previousLogLikelihood);
+                        putDoubles(buffer, state.alphaParams);
+                        for (double[] timePointParams : state.hapParams) {
+                            putDoubles(buffer, timePointParams);
+                        }
+                        putDoubles(buffer, state.priors);
+                        if (state.probabilities != null) {
+                            DoubleBuffer probabilities = state.getProbabilities();
+                            ((Buffer) probabilities).clear();
+                            buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(probabilities);
+                            ((Buffer) buffer).position(buffer.position() + 8 * state.probabilityCount());
+                        }
+                    }
+                    buffer.force();
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write checkpoint " + file, e);
+        }
+    }
+
+    private static void putDoubles(ByteBuffer buffer, double[] values) {
+        for (double value : values) {
+            buffer.putDouble(value);
+        }
+    }
+
+    private static double[] getDoubles(ByteBuffer buffer, int length) {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = buffer.getDouble();
+        }
+        return values;
+    }
+}
@@ -1,5 +1,6 @@
 package rag.harold;
 
+import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.optim.InitialGuess;
 import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.OptimizationData;
@@ -9,22 +10,39 @@ import org.apache.commons.math3.optim.nonlinear.scalar.MultivariateOptimizer;
 import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.BOBYQAOptimizer;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
 
 /**
  * @author rgoldst
  */
 public class Cluster {
+    /**
+     * Optimiser for the haplotype frequencies of a timepoint when there are more than two haplotypes
+     */
+    enum HapOptimiser {BOBYQA, LBFGS}
+
 
     private final int nHaplo; // Number of haplotypes, revised based on command line argument
     private final String name;
     private int nTimePoints = 0;  // Number of timepoints, revised based on data
     private ArrayList<Assignment> assignmentVector = new ArrayList<>();  // Vector of all possible assignments
+    private Assignment[][] assignmentsByMask = new Assignment[16][];  // [present-base mask] assignments using only those bases
     private int[] nAssignDiffBases = new int[5]; // Number of assignments with a given number of bases
     private DataSet dataSet;  // Class for holding and manipulating sequence data
+    private ForkJoinPool threadPool;  // Shared with the site-level reductions of dataSet
     private Random random;
     private boolean verbose; // Print lots of intermediate results
     private int maxIter = 10; // Maximum rounds of optimisation
@@ -34,15 +52,23 @@ public class Cluster {
     private double finalLogLikelihood = 0.0;
     private double[][] currentHapParams;
     private double[] currentAlphaParams;
+    private HapOptimiser hapOptimiser = HapOptimiser.BOBYQA;
+    private double pruneMargin = 0.0;  // see Site.setPruneMargin
+    private Checkpoint checkpoint;  // written after every round of run(), or null
+    private int checkpointIndex;  // of this cluster in checkpoint
+    private Checkpoint.ClusterState resumeRound;  // restored part way through run(), or null
+    private int nRuns = 0;  // calls of run(), for the metrics
     /**
      * Reads in data and initialises
      */
-    Cluster(File countFilesFile, int nHaplo, double[] initialAlpha, GammaCalc gammaCalc, long randomSeed, boolean verbose) {
+    Cluster(File countFilesFile, int nHaplo, double[] initialAlpha, GammaCalc gammaCalc, long randomSeed,
+            ForkJoinPool threadPool, boolean useCache, StateStore store, boolean verbose) {
 
         this.name = countFilesFile.getName();
         System.out.println(this.name + ": " + countFilesFile.getAbsolutePath());
         this.random = new Random(randomSeed);
         this.verbose = verbose;
+        this.threadPool = threadPool;
 
         this.initialAlphaParams = initialAlpha;
 
@@ -56,11 +82,157 @@ public class Cluster {
         this.nHaplo = nHaplo;  // Update number of haplotypes
         System.out.printf("%s: haplotypes = %d\n", this.name, this.nHaplo);
 
-        constructAssignments(gammaCalc);  // Construct possible assignments of bases to haplotypes
-        dataSet = new DataSet(countFilesFile, nHaplo, assignmentVector, nAssignDiffBases, gammaCalc, random, verbose); // Construct dataset
+        constructAssignments();  // Construct possible assignments of bases to haplotypes
+        dataSet = new DataSet(countFilesFile, nHaplo, assignmentsByMask, nAssignDiffBases, gammaCalc, random, threadPool, useCache, store, verbose); // Construct dataset
         nTimePoints = dataSet.getNTimePoints();  // Number of time points in dataset
         System.out.printf("%s: timepoints = %d\n", this.name, this.nTimePoints);
         System.out.printf("%s: sites = %d\n", this.name, dataSet.getSiteCount());
+        System.out.printf("%s: variable site patterns = %d\n", this.name, dataSet.getPatternCount());
+        System.out.printf("%s: conserved site depths = %d\n", this.name, dataSet.getConservedDepthCount());
+        recordSizes();
+    }
+
+    /**
+     * Another start of loaded, sharing its data and assignments but optimised from its own random
+     * initial frequencies
+     */
+    Cluster(Cluster loaded, int iStart, long randomSeed) {
+        this.name = loaded.name + "#" + iStart;
+        this.random = new Random(randomSeed);
+        this.verbose = loaded.verbose;
+        this.threadPool = loaded.threadPool;
+        this.initialAlphaParams = loaded.initialAlphaParams;
+        this.optimiseAlpha = loaded.optimiseAlpha;
+        this.nHaplo = loaded.nHaplo;
+        this.assignmentVector = loaded.assignmentVector;
+        this.assignmentsByMask = loaded.assignmentsByMask;
+        this.nAssignDiffBases = loaded.nAssignDiffBases;
+        this.hapOptimiser = loaded.hapOptimiser;
+        dataSet = new DataSet(loaded.dataSet);
+        nTimePoints = dataSet.getNTimePoints();
+        setPruneMargin(loaded.pruneMargin);
+    }
+
+    /**
+     * The data of this cluster, which are not read again, fitted with a different number of haplotypes
+     */
+    Cluster withHaplotypes(int nHaplo, long randomSeed) {
+        return new Cluster(nHaplo, this, randomSeed);
+    }
+
+    private Cluster(int nHaplo, Cluster loaded, long randomSeed) {
+        this.name = loaded.name;
+        this.random = new Random(randomSeed);
+        this.verbose = loaded.verbose;
+        this.threadPool = loaded.threadPool;
+        this.initialAlphaParams = loaded.initialAlphaParams;
+        this.optimiseAlpha = loaded.optimiseAlpha;
+        this.hapOptimiser = loaded.hapOptimiser;
+        this.nHaplo = nHaplo;
+        System.out.printf("%s: haplotypes = %d\n", this.name, this.nHaplo);
+
+        constructAssignments();
+        dataSet = new DataSet(loaded.dataSet, nHaplo, assignmentsByMask, nAssignDiffBases, random);
+        nTimePoints = dataSet.getNTimePoints();
+        setPruneMargin(loaded.pruneMargin);
+        System.out.printf("%s: variable site patterns = %d\n", this.name, dataSet.getPatternCount());
+        recordSizes();
+    }
+
+    /**
+     * Worker side of a sharded run: the shard of a cluster sent by writeShard in the coordinator
+     */
+    Cluster(String name, DataInputStream in, GammaCalc gammaCalc, ForkJoinPool threadPool, StateStore store)
+            throws IOException {
+        this.name = name;
+        this.threadPool = threadPool;
+        this.nHaplo = in.readInt();
+        constructAssignments();
+        dataSet = new DataSet(in, nHaplo, assignmentsByMask, nAssignDiffBases, gammaCalc, threadPool, store);
+        nTimePoints = dataSet.getNTimePoints();
+    }
+
+    /**
+     * Sends the sites of shard, of nShards, to a worker of a sharded run
+     */
+    void writeShard(DataOutputStream out, int shard, int nShards) throws IOException {
+        out.writeInt(nHaplo);
+        dataSet.writeShard(out, shard, nShards);
+    }
+
+    private void recordSizes() {
+        if (Metrics.isEnabled()) {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            counts.put("timepoints", (long) nTimePoints);
+            counts.put("sites", (long) dataSet.getSiteCount());
+            counts.put("active_sites", (long) dataSet.getActiveSiteCount());
+            counts.put("variable_site_patterns", (long) dataSet.getPatternCount());
+            counts.put("conserved_site_depths", (long) dataSet.getConservedDepthCount());
+            counts.put("assignments", (long) assignmentVector.size());
+            counts.put("site_assignments", (long) dataSet.getLocalAssignmentCount());
+            Metrics.cluster(name, nHaplo, counts);
+        }
+    }
+
+    void setHapOptimiser(HapOptimiser hapOptimiser) {
+        this.hapOptimiser = hapOptimiser;
+    }
+
+    /**
+     * Log-likelihood margin below the best assignment of a site at which the E-step stops evaluating an
+     * assignment, or 0 to evaluate them all; see Site.setPruneMargin
+     */
+    void setPruneMargin(double pruneMargin) {
+        this.pruneMargin = pruneMargin;
+        dataSet.setPruneMargin(pruneMargin);
+    }
+
+    /**
+     * Leaves the site sums to the workers of a sharded run, which hold this cluster as number iCluster
+     */
+    void setShards(Shards shards, int iCluster) {
+        dataSet.setShards(shards, iCluster);
+    }
+
+    DataSet getDataSet() {
+        return dataSet;
+    }
+
+    /**
+     * Records the state of this cluster, as number iCluster, in checkpoint after every round of run()
+     */
+    void setCheckpoint(Checkpoint checkpoint, int iCluster) {
+        this.checkpoint = checkpoint;
+        this.checkpointIndex = iCluster;
+    }
+
+    /**
+     * State between runs, with the assignment probabilities if withProbabilities
+     */
+    Checkpoint.ClusterState getState(boolean withProbabilities) {
+        return new Checkpoint.ClusterState(nHaplo, currentHapParams, currentAlphaParams, dataSet.getPriors(), false,
+                0.0, 0.0, withProbabilities ? dataSet.getAssignmentProbabilities() : null);
+    }
+
+    /**
+     * Carries on from a checkpointed state; if it was part way through run(), the next run() continues
+     * that one rather than starting a new one
+     */
+    void restore(Checkpoint.ClusterState state) {
+        if (state.nHaplo != nHaplo || state.hapParams.length != nTimePoints) {
+            throw new IllegalStateException(String.format("%s: checkpoint has %d haplotypes and %d timepoints, not %d and %d",
+                    name, state.nHaplo, state.hapParams.length, nHaplo, nTimePoints));
+        }
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            currentHapParams[iTimePoint] = state.hapParams[iTimePoint].clone();
+        }
+        currentAlphaParams = state.alphaParams.clone();
+        dataSet.setPriors(state.priors);
+        DoubleBuffer probabilities = state.getProbabilities();
+        if (probabilities != null) {
+            dataSet.setAssignmentProbabilities(probabilities);
+        }
+        resumeRound = state.inRun ? state : null;
     }
 
     void initialise() {
@@ -68,69 +240,170 @@ public class Cluster {
         this.currentAlphaParams = Arrays.copyOf(initialAlphaParams, 2);   // Initial values for alpha parameters alpha0 and alphaE
     }
 
+    /**
+     * Starts from the fit of smaller, which has one haplotype fewer, by splitting its most frequent
+     * haplotype unevenly into two, so that the two halves can separate
+     */
+    void initialise(Cluster smaller) {
+        double[][] smallerPiHap = smaller.dataSet.computePiHap(smaller.currentHapParams);
+        int split = 0;
+        double[] total = new double[smaller.nHaplo];
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            for (int iHaplo = 0; iHaplo < smaller.nHaplo; iHaplo++) {
+                total[iHaplo] += smallerPiHap[iTimePoint][iHaplo];
+                if (total[iHaplo] > total[split]) {
+                    split = iHaplo;
+                }
+            }
+        }
+        this.currentHapParams = new double[nTimePoints][nHaplo - 1];
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            double[] piHap = Arrays.copyOf(smallerPiHap[iTimePoint], nHaplo);
+            piHap[nHaplo - 1] = 0.4 * piHap[split];
+            piHap[split] *= 0.6;
+            double remaining = 1.0;   // Invert the stick-breaking of DataSet.computePiHap
+            for (int iHaplo = 0; iHaplo < nHaplo - 1; iHaplo++) {
+                currentHapParams[iTimePoint][iHaplo] = Math.max(1.0E-8, Math.min(1.0, piHap[iHaplo] / remaining));
+                remaining -= piHap[iHaplo];
+            }
+        }
+        this.currentAlphaParams = Arrays.copyOf(smaller.currentAlphaParams, 2);
+    }
+
+    int getHaplotypeCount() {
+        return nHaplo;
+    }
+
+    int getParameterCount() {
+        return dataSet.getParameterCount();
+    }
+
+    int getActiveSiteCount() {
+        return dataSet.getActiveSiteCount();
+    }
+
     /**
      * Find best assignments and haplotype frequencies
      */
     double run() {
         int iIter = 0;
+        long startEvaluations = dataSet.getEvaluationCount();
+        nRuns++;
+        long runStart = Metrics.start();
+        long roundStart = runStart;
+        int round = 0;
 
         // System.out.println("Optimising haplotype frequencies");
         // Optimise haplotype frequencies first
         dataSet.updateAllParams(currentHapParams, currentAlphaParams);
         double step1_current_lnl = dataSet.assignHaplotypes();
-        dataSet.updateFracConserved();
         double step1_previous_lnl = Double.NEGATIVE_INFINITY;
+        if (resumeRound != null) {   // the priors were restored with the round
+            step1_previous_lnl = resumeRound.previousLogLikelihood;
+            resumeRound = null;
+        } else {
+            dataSet.updateFracConserved();
+        }
+        saveRound(step1_current_lnl, step1_previous_lnl);
+        Metrics.phase("frequency round", name, nHaplo, nRuns, round, roundStart);
 
         while (true) {
             if (Math.abs(step1_current_lnl - step1_previous_lnl) < minImprovement) {
                 break;
             }
+            roundStart = Metrics.start();
+            round++;
 
+            dataSet.setOptType(1, 0, currentHapParams, currentAlphaParams, iIter);    // Set the parameters of every timePoint
             if (nHaplo == 2) {   // Simple single parameter optimisation for each time point
-                double optSinglePoint;      //  Hapltype frequency parameter
-                for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                    dataSet.setOptType(1, iTimePoint, currentHapParams, currentAlphaParams, iIter);    // Tell dataSet what timePoint is being optimised
-                    optSinglePoint = fmin(1.0E-8, 1.0, 1.0E-6);    // Find best value within range and tolerance
-                    if (verbose) {
-                        System.out.println("Optimum piParams\t" + iTimePoint + "\t" + optSinglePoint);  // Output optimum
-                    }
-                    currentHapParams[iTimePoint][0] = optSinglePoint; // Update current HapParameters
-                }
+                optimiseTimePoints(iTimePoint -> new double[]{
+                        fmin(dataSet.timePointObjective(iTimePoint), 1.0E-8, 1.0, 1.0E-6)});    // Find best value within range and tolerance
+            } else if (nHaplo > 2 && hapOptimiser == HapOptimiser.LBFGS) {   // Gradient-based optimisation for each time point
+                double[] lower = new double[nHaplo - 1];
+                Arrays.fill(lower, 1.0E-8);
+                double[] upper = new double[nHaplo - 1];
+                Arrays.fill(upper, 1.0);
+                optimiseTimePoints(iTimePoint -> {
+                    BoundedLbfgs optimize = new BoundedLbfgs(5, 1.0E-12, 1.0E-7, 1.0E-4, 1000000);
+                    double[] optPoint = optimize.optimise(dataSet.timePointObjective(iTimePoint)::valueAndGradient,
+                            currentHapParams[iTimePoint], lower, upper);
+                    Metrics.add(Metrics.Counter.LBFGS_FREQUENCY_EVALUATIONS, optimize.getEvaluations());
+                    return optPoint;
+                });
             } else if (nHaplo > 2) {   // Multidimensional parameter optimisation for each time point
-                MultivariateOptimizer optimize = new BOBYQAOptimizer(2 * nHaplo - 2, 0.01, 1.0E-6);
                 double[] lb_alpha = new double[nHaplo - 1];
                 Arrays.fill(lb_alpha, 1.0E-8);  // Lower bound
                 double[] ub_alpha = new double[nHaplo - 1];
                 Arrays.fill(ub_alpha, 1.0);     // Upper bound
-
-                for (int iTimePoint = 0; iTimePoint < dataSet.nTimePoints; iTimePoint++) {
-                    dataSet.setOptType(1, iTimePoint, currentHapParams, currentAlphaParams, iIter);   // Tell dataSet what timePoint is being optimised
+                optimiseTimePoints(iTimePoint -> {
+                    MultivariateOptimizer optimize = new BOBYQAOptimizer(2 * nHaplo - 2, 0.01, 1.0E-6);
                     OptimizationData[] parm = new OptimizationData[]{       // Set up optimisation data
                             new InitialGuess(currentHapParams[iTimePoint]),
                             new MaxEval(1000000),
                             GoalType.MINIMIZE,
-                            new ObjectiveFunction(dataSet),
+                            new ObjectiveFunction(dataSet.timePointObjective(iTimePoint)),
                             new SimpleBounds(lb_alpha, ub_alpha)};
                     double[] optPoint = optimize.optimize(parm).getPoint();  // Optimise
-                    if (verbose) {
-                        System.out.println("Optimum piParams\t" + iTimePoint + "\t" + Arrays.toString(optPoint));
-                    }
-                    for (int iHaplo = 0; iHaplo < nHaplo - 1; iHaplo++) {
-
-                        currentHapParams[iTimePoint][iHaplo] = optPoint[iHaplo]; // Update current parameters
-                    }
-                }
+                    Metrics.add(Metrics.Counter.BOBYQA_FREQUENCY_EVALUATIONS, optimize.getEvaluations());
+                    return optPoint;
+                });
             }
 
             dataSet.updateAllParams(currentHapParams, currentAlphaParams);
             step1_previous_lnl = step1_current_lnl;
             step1_current_lnl = dataSet.assignHaplotypes();  // Find best set of assignments
+            saveRound(step1_current_lnl, step1_previous_lnl);
+            Metrics.phase("frequency round", name, nHaplo, nRuns, round, roundStart);
         }
+        Metrics.phase("cluster run", name, nHaplo, nRuns, 0, runStart);
 
         System.out.printf("%s: haplotype frequencies lnl = %.5f\n", this.name, step1_current_lnl);
+        System.out.printf("%s: haplotype frequency evaluations = %d\n", this.name, dataSet.getEvaluationCount() - startEvaluations);
         return step1_current_lnl;
     }
 
+    private void saveRound(double currentLogLikelihood, double previousLogLikelihood) {
+        if (checkpoint != null) {
+            checkpoint.saveRound(checkpointIndex, new Checkpoint.ClusterState(nHaplo, currentHapParams,
+                    currentAlphaParams, dataSet.getPriors(), true, currentLogLikelihood, previousLogLikelihood, null));
+        }
+    }
+
+    /**
+     * Optimises the frequencies of all timepoints concurrently on the thread pool, then updates
+     * currentHapParams. With the assignment probabilities fixed the timepoints are independent, and each
+     * optimisation only changes the state of its own timepoint, so the result is the same as optimising
+     * them one after another.
+     */
+    private void optimiseTimePoints(IntFunction<double[]> optimiser) {
+        List<ForkJoinTask<double[]>> tasks = new ArrayList<>();
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            final int timePoint = iTimePoint;
+            tasks.add(threadPool.submit(() -> optimiser.apply(timePoint)));
+        }
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            double[] optPoint = tasks.get(iTimePoint).join();
+            if (verbose) {
+                System.out.println("Optimum piParams\t" + iTimePoint + "\t" + Arrays.toString(optPoint));  // Output optimum
+            }
+            System.arraycopy(optPoint, 0, currentHapParams[iTimePoint], 0, nHaplo - 1); // Update current parameters
+        }
+    }
+
+    /**
+     * Evaluates the likelihood of parameter snapshots without changing this cluster
+     */
+    LikelihoodEngine getLikelihoodEngine() {
+        return dataSet.getLikelihoodEngine();
+    }
+
+    /**
+     * Snapshot of the current parameters
+     */
+    LikelihoodEngine.Params snapshot() {
+        return dataSet.snapshot(currentHapParams, currentAlphaParams);
+    }
+
     double calculateCurrent(double[] currentAlphaParams) {
         this.currentAlphaParams = currentAlphaParams;
         dataSet.updateAllParams(currentHapParams, this.currentAlphaParams);
@@ -138,11 +411,13 @@ public class Cluster {
     }
 
     double printResults() {
+        long start = Metrics.start();
         dataSet.setOptType(2, 0, currentHapParams, currentAlphaParams, 0);
         dataSet.updateAllParams(currentHapParams, currentAlphaParams);
-        finalLogLikelihood = dataSet.assignHaplotypes();  // Find best set of assignments and calculate loglikelihood
+        finalLogLikelihood = dataSet.assignHaplotypes(true);  // Find best set of assignments and calculate loglikelihood
         System.out.printf("-------------------- %s --------------------\n", this.name);
         dataSet.printResults();
+        Metrics.phase("print results", name, nHaplo, 0, 0, start);
         return finalLogLikelihood;
     }
 
@@ -155,16 +430,27 @@ public class Cluster {
     }
 
     /**
-     * Constructs vector of all possible assignments
+     * Constructs vector of all possible assignments, and indexes them by the set of bases present at a site
      */
-    private void constructAssignments(GammaCalc gammaCalc) {
+    private void constructAssignments() {
+        long start = Metrics.start();
         int nAssignments = pow(Constants.MAX_BASES, nHaplo);  // Theoretical exhaustive number of possible assignments
         for (int iAssign = 0; iAssign < nAssignments; iAssign++) {  // Loop over all possible assignments
-            Assignment newAssignment = new Assignment(iAssign, nHaplo, gammaCalc, verbose);
+            Assignment newAssignment = new Assignment(iAssign, nHaplo, verbose);
             assignmentVector.add(newAssignment);
             nAssignDiffBases[newAssignment.nPresent]++;
         }
+        for (int mask = 0; mask < assignmentsByMask.length; mask++) {
+            ArrayList<Assignment> compatible = new ArrayList<>();
+            for (Assignment assignment : assignmentVector) {
+                if ((assignment.presentMask & ~mask) == 0) {
+                    compatible.add(assignment);
+                }
+            }
+            assignmentsByMask[mask] = compatible.toArray(new Assignment[0]);
+        }
         System.out.printf("%s: assignments = %d\n", name, assignmentVector.size());
+        Metrics.phase("construct assignments", name, nHaplo, 0, 0, start);
     }
 
     /**
@@ -196,7 +482,7 @@ public class Cluster {
      * Brent algorithm for maximising a function in one dimension
      * Adapted from Apache Commons
      */
-    private double fmin(double a, double b, double tol) {
+    private double fmin(UnivariateFunction function, double a, double b, double tol) {
         double c, d, e, eps, xm, p, q, r, tol1, t2, u, v, w, fu, fv, fw, fx, x, tol3;
 
         c = .5 * (3.0 - Math.sqrt(5.0));
@@ -209,7 +495,8 @@ public class Cluster {
         w = v;
         x = v;
         e = 0.0;
-        fx = dataSet.value(x);
+        fx = function.value(x);
+        int evaluations = 1;
         fv = fx;
         fw = fx;
         tol3 = tol / 3.0;
@@ -259,7 +546,8 @@ public class Cluster {
                     u = x - tol1;
                 }
             }
-            fu = dataSet.value(u);
+            fu = function.value(u);
+            evaluations++;
 
             if (fx <= fu) {
                 if (u < x) {
@@ -305,6 +593,7 @@ public class Cluster {
                 }
             }
         }
+        Metrics.add(Metrics.Counter.FMIN_EVALUATIONS, evaluations);
         return x;
     }
 
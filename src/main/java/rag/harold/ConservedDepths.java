@@ -0,0 +1,76 @@
+package rag.harold;
+
+import java.util.Arrays;
+
+/**
+ * Conserved sites folded into a histogram of strand depth for each timepoint.
+ * <p>
+ * All the reads of a conserved site are on one base, so the likelihood of each strand only depends on its
+ * depth and the alpha parameters. Summing over distinct depths weighted by the number of (site, strand)
+ * pairs at that depth gives the same total as summing over sites, at a cost independent of genome length.
+ */
+class ConservedDepths {
+    private final GammaCalc gamma;
+    private final int nTimePoints;
+    private final int[][] depth;  // [tp][distinct strand depth, ascending]
+    private final int[][] count;  // [tp][number of (site, strand) pairs at that depth]
+
+    ConservedDepths(SiteTable table, int[] sites, GammaCalc gammaCalc) {
+        this.gamma = gammaCalc;
+        this.nTimePoints = table.nTimePoints;
+        depth = new int[nTimePoints][];
+        count = new int[nTimePoints][];
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            int[] strandDepths = new int[2 * sites.length];
+            int nStrands = 0;
+            for (int iSite : sites) {
+                if (table.isConserved(iSite)) {
+                    int strandOffset = table.strandOffset(iSite, iTimePoint);
+                    strandDepths[nStrands++] = table.totStrand.get(strandOffset);
+                    strandDepths[nStrands++] = table.totStrand.get(strandOffset + 1);
+                }
+            }
+            Arrays.sort(strandDepths, 0, nStrands);
+            int[] distinct = new int[nStrands];
+            int[] distinctCount = new int[nStrands];
+            int nDistinct = 0;
+            for (int iStrand = 0; iStrand < nStrands; iStrand++) {
+                if (nDistinct == 0 || strandDepths[iStrand] != distinct[nDistinct - 1]) {
+                    distinct[nDistinct++] = strandDepths[iStrand];
+                }
+                distinctCount[nDistinct - 1]++;
+            }
+            depth[iTimePoint] = Arrays.copyOf(distinct, nDistinct);
+            count[iTimePoint] = Arrays.copyOf(distinctCount, nDistinct);
+        }
+    }
+
+    /**
+     * Log-likelihood of all the conserved sites, including the prior of their single-base assignment
+     */
+    double logLikelihood(double[] alphaParams, double[] priors) {
+        double alpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
+        double alphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
+        double sumAlphaObs = alpha0 + 3.0 * alphaE;
+        double logLikelihood = 0.0;
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            for (int iDepth = 0; iDepth < depth[iTimePoint].length; iDepth++) {
+                int reads = depth[iTimePoint][iDepth];
+                logLikelihood += count[iTimePoint][iDepth] * (priors[1] + gamma.logRisingFactorial(alpha0, reads)
+                        - gamma.logRisingFactorial(sumAlphaObs, reads));
+            }
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Number of distinct depths summed over timepoints
+     */
+    int size() {
+        int size = 0;
+        for (int[] tpDepth : depth) {
+            size += tpDepth.length;
+        }
+        return size;
+    }
+}
@@ -1,14 +1,24 @@
 package rag.harold;
 
 import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.analysis.UnivariateFunction;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntToDoubleFunction;
 
 
 /**
@@ -17,12 +27,16 @@ import java.util.*;
 public class DataSet implements MultivariateFunction {
     final int siteCount;
     int nTimePoints = 0;   // Number of time points
-    private ArrayList<Site> activeSiteVector = new ArrayList<>();  // List of sites that are actively considered
-    private ArrayList<Site> variableSiteVector = new ArrayList<>(); // List of all variable sites
-    private ArrayList<Site> reducedSiteVector0 = new ArrayList<>();
-    private ArrayList<Site> reducedSiteVector1 = new ArrayList<>();
+    private SiteTable siteTable;  // Reads at every site
+    private Site site;  // Likelihood kernels over siteTable
+    private LogGammaTable logGammaTable;  // Log-gamma terms of the variable sites, by haplotype subset
+    private int[] activeSiteVector;  // Rows of sites that are actively considered
+    private int[] variableSiteVector; // Rows of all variable sites
+    private int[] reducedSiteVector0;
+    private int[] reducedSiteVector1;
+    private int[] patternRow;  // [site] first active row with the same reads, evaluated in its place
     private int nHaplo = 3; // Number of haplotypes
-    private ArrayList<Assignment> assignmentVector = null;   // Vectir if assignments
+    private Assignment[][] assignmentsByMask = null;   // Assignments compatible with each set of present bases
     private int[] nAssignDiffBases = null;
     private double[] currentAlphaParams = new double[2];   // alpha0 and alphaE
     private double[][] currentPiHap = null;
@@ -34,22 +48,34 @@ public class DataSet implements MultivariateFunction {
     private int optType = 0;  // 0 for optimising alpha0 and alphaE, 1 for optimising haplotype frequencies
     private int optTimePoint = 0;   // if optType = 1, what timePoint is being optimised
     private int iCount = 0;  // How many iterations of optimiser have been finished
+    private final LongAdder nEvaluations = new LongAdder();  // Objective evaluations over the whole run
+    private TimePointObjective optObjective = null;  // if optType = 1, objective of that timePoint
     private double currentLogLikelihood = 0.0;
     private int assignHaplotypesCount = 0;
-
-    DataSet(File fileNameFile, int nHaplo, ArrayList<Assignment> assignmentVector,
-            int[] nAssignDiffBases, GammaCalc gammaCalc, Random random, boolean verbose) {  // Read in data
+    private SiteReduction variableSites;  // Parallel sums over the variable sites of the vectors above
+    private SiteReduction reducedSites0;
+    private SiteReduction reducedSites1;
+    private ConservedDepths activeConserved;  // Depth histograms of the conserved sites of the vectors above
+    private ConservedDepths reducedConserved0;
+    private ConservedDepths reducedConserved1;
+    private LikelihoodEngine likelihoodEngine;  // Stateless evaluation of the active sites, or null until asked for
+    private GammaCalc gammaCalc;
+    private ForkJoinPool threadPool;  // Shared with the reductions
+    private StateStore store;  // Holds the per-site state, on the heap or mapped
+    private Shards shards = null;  // Worker processes holding the sites of a sharded run, or null
+    private int shardCluster;  // Index of this dataset among the clusters of the workers
+
+    DataSet(File fileNameFile, int nHaplo, Assignment[][] assignmentsByMask,
+            int[] nAssignDiffBases, GammaCalc gammaCalc, Random random, ForkJoinPool threadPool, boolean useCache,
+            StateStore store, boolean verbose) {  // Read in data
         this.nHaplo = nHaplo;
-        this.assignmentVector = assignmentVector;
+        this.assignmentsByMask = assignmentsByMask;
         this.nAssignDiffBases = nAssignDiffBases;
         this.verbose = verbose;
-
-        ArrayList<Integer> allSiteVector = new ArrayList<>();// List of all sites
-        HashMap<Integer, Site> siteHash = new HashMap<Integer, Site>();  // Data of sites labeled by site number
-        priors[1] = Math.log(0.9 / (nAssignDiffBases[1] + 1.0E-20));
-        priors[2] = Math.log(0.07 / (nAssignDiffBases[2] + 1.0E-20));
-        priors[3] = Math.log(0.02 / (nAssignDiffBases[3] + 1.0E-20));
-        priors[4] = Math.log(0.01 / (nAssignDiffBases[4] + 1.0E-20));
+        this.gammaCalc = gammaCalc;
+        this.threadPool = threadPool;
+        this.store = store;
+        initialisePriors();
 
         List<String> fileNameVector;
 
@@ -64,92 +90,485 @@ public class DataSet implements MultivariateFunction {
 
         String pathPrefix = Paths.get(fileNameFile.getAbsolutePath()).getParent().toString();
 
-        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {  // read in data files
-            String dataFile = new File(pathPrefix, fileNameVector.get(iTimePoint)).toString();
-            try {
-                FileReader file = new FileReader(dataFile);
-                BufferedReader buff = new BufferedReader(file);
-                String line = "";
-                boolean eof = false;
-                while (!eof) {
-                    line = buff.readLine();
-                    if (line == null) {
-                        eof = true;
-                    } else {
-                        if (line.contains("Position")) {
-                            line = buff.readLine();
-                        }
-                        int iSite = Integer.parseInt(line.split("\\t")[1]);
-                        if (!siteHash.containsKey(iSite)) {   // list of sites that contain data
-                            allSiteVector.add(iSite);
-                            Site newSite = new Site(iSite, nTimePoints, nHaplo, assignmentVector, gammaCalc); // create new site if needed
-                            siteHash.put(iSite, newSite);
-                        }
-                        siteHash.get(iSite).addTimePoint(iTimePoint, line);  // add datapoint to site
+        List<Path> dataFiles = new ArrayList<>();
+        for (String fileName : fileNameVector) {
+            dataFiles.add(Paths.get(pathPrefix, fileName));
+        }
+
+        try {
+            // Streaming reads the counts in place from the mapped cache
+            SiteTableCache cache = useCache || store.isMapped() ? new SiteTableCache(fileNameFile, dataFiles) : null;
+            if (cache != null) {
+                long loadStart = Metrics.start();
+                siteTable = cache.load(gammaCalc, threadPool);
+                Metrics.phase("load cache", fileNameFile.getName(), nHaplo, 0, 0, loadStart);
+                if (siteTable != null) {
+                    System.out.println(fileNameFile.getName() + ": loaded cache " + cache.getPath());
+                }
+            }
+            if (siteTable == null) {
+                long parseStart = Metrics.start();
+                siteTable = readSiteTable(dataFiles, gammaCalc, threadPool);
+                Metrics.phase("parse", fileNameFile.getName(), nHaplo, 0, 0, parseStart);
+                if (cache != null) {
+                    cache.write(siteTable);
+                    System.out.println(fileNameFile.getName() + ": wrote cache " + cache.getPath());
+                    if (store.isMapped()) {
+                        siteTable = cache.load(gammaCalc, threadPool);   // drop the parsed copy from the heap
                     }
                 }
-            } catch (IOException e) {
-                System.out.println("Error: File not found (IO error)");
-                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+        for (int iSite = 0; iSite < siteTable.size(); iSite++) {
+            if (siteTable.isSmellBad(iSite)) {
+                System.out.println("Rejected site " + siteTable.position[iSite] + "\t" + siteTable.smellScore(iSite, gammaCalc));
             }
         }
 
-        this.siteCount = siteHash.size();
+        this.siteCount = siteTable.size();
+        long indexStart = Metrics.start();
+        indexSites(random);
+        Metrics.phase("index sites", fileNameFile.getName(), nHaplo, 0, 0, indexStart);
+    }
 
+    /**
+     * The data of loaded, which are shared rather than read again, for a different number of haplotypes
+     */
+    DataSet(DataSet loaded, int nHaplo, Assignment[][] assignmentsByMask, int[] nAssignDiffBases, Random random) {
+        this.nHaplo = nHaplo;
+        this.assignmentsByMask = assignmentsByMask;
+        this.nAssignDiffBases = nAssignDiffBases;
+        this.verbose = loaded.verbose;
+        this.gammaCalc = loaded.gammaCalc;
+        this.threadPool = loaded.threadPool;
+        this.store = loaded.store;
+        initialisePriors();
+        this.nTimePoints = loaded.nTimePoints;
+        this.siteTable = loaded.siteTable;
+        this.siteCount = loaded.siteCount;
+        indexSites(random);
+    }
 
-        for (int iSite : allSiteVector) {  // Create activeSiteVector
-            Site site = siteHash.get(iSite);
-            if (site.isActive()) {    // do simple sums
-                activeSiteVector.add(site);
+    private void initialisePriors() {
+        priors[1] = Math.log(0.9 / (nAssignDiffBases[1] + 1.0E-20));
+        priors[2] = Math.log(0.07 / (nAssignDiffBases[2] + 1.0E-20));
+        priors[3] = Math.log(0.02 / (nAssignDiffBases[3] + 1.0E-20));
+        priors[4] = Math.log(0.01 / (nAssignDiffBases[4] + 1.0E-20));
+    }
+
+    /**
+     * Picks the active, variable and reduced sites of siteTable and builds the structures evaluating them
+     */
+    private void indexSites(Random random) {
+        ArrayList<Integer> active = new ArrayList<>();
+        ArrayList<Integer> variable = new ArrayList<>();
+        ArrayList<Integer> reduced0 = new ArrayList<>();
+        ArrayList<Integer> reduced1 = new ArrayList<>();
+        // The reduced sets are drawn in the order sites first appear in the count files, as they were read
+        // before rows were sorted by position, so a seed picks the same sites
+        byte[] sampled = new byte[siteCount];  // bit 0 in reduced set 0, bit 1 in reduced set 1
+        for (int iOrder = 0; iOrder < siteCount; iOrder++) {
+            int iSite = siteTable.appearanceRow(iOrder);
+            if (siteTable.isActive(iSite)) {
                 if (random.nextDouble() < useFrac[0]) {
-                    reducedSiteVector0.add(site);
+                    sampled[iSite] |= 1;
                 }
                 if (random.nextDouble() < useFrac[1]) {
-                    reducedSiteVector1.add(site);
+                    sampled[iSite] |= 2;
                 }
-                if (!site.siteConserved) {
-                    variableSiteVector.add(site);
+            }
+        }
+        for (int iSite = 0; iSite < siteCount; iSite++) {  // Create activeSiteVector
+            if (siteTable.isActive(iSite)) {    // do simple sums
+                active.add(iSite);
+                if ((sampled[iSite] & 1) != 0) {
+                    reduced0.add(iSite);
+                }
+                if ((sampled[iSite] & 2) != 0) {
+                    reduced1.add(iSite);
+                }
+                if (!siteTable.isConserved(iSite)) {
+                    variable.add(iSite);
                 }
             }
         }
+        activeSiteVector = toArray(active);
+        variableSiteVector = toArray(variable);
+        reducedSiteVector0 = toArray(reduced0);
+        reducedSiteVector1 = toArray(reduced1);
+
+        // Identical variable sites are evaluated once, as one pattern weighted by the number of sites
+        patternRow = siteTable.findPatterns(variableSiteVector);
+        int[][] variablePatterns = countPatterns(variableSiteVector);
+        logGammaTable = new LogGammaTable(siteTable, variablePatterns[0], nHaplo, gammaCalc, store);
+        site = new Site(siteTable, nHaplo, assignmentsByMask, logGammaTable, variablePatterns[0], store);
+
+        variableSites = patternReduction(variablePatterns, threadPool);
+        reducedSites0 = patternReduction(countPatterns(reducedSiteVector0), threadPool);
+        reducedSites1 = patternReduction(countPatterns(reducedSiteVector1), threadPool);
+
+        // Conserved sites only contribute through their strand depths
+        activeConserved = new ConservedDepths(siteTable, activeSiteVector, gammaCalc);
+        reducedConserved0 = new ConservedDepths(siteTable, reducedSiteVector0, gammaCalc);
+        reducedConserved1 = new ConservedDepths(siteTable, reducedSiteVector1, gammaCalc);
     }
 
-    double computeTotalLogLikelihood() {
-        double totalLogLikelihood = 0.0;
-        if (optType == 0 && iIter == 0 && useFrac[0] < 0.99999) {
-            for (Site site : reducedSiteVector0) {
-                totalLogLikelihood += site.computeSiteLogLikelihood(currentAlphaParams, priors);
+    /**
+     * Fresh optimisation state over the data of loaded, which is shared rather than read again. Only the
+     * parameters, assignment probabilities and the caches derived from them are per copy, so copies can be
+     * optimised concurrently from different starting points.
+     */
+    DataSet(DataSet loaded) {
+        this.siteCount = loaded.siteCount;
+        this.nTimePoints = loaded.nTimePoints;
+        this.nHaplo = loaded.nHaplo;
+        this.assignmentsByMask = loaded.assignmentsByMask;
+        this.nAssignDiffBases = loaded.nAssignDiffBases;
+        this.verbose = loaded.verbose;
+        this.priors = loaded.priors.clone();
+        this.gammaCalc = loaded.gammaCalc;
+        this.threadPool = loaded.threadPool;
+        this.store = loaded.store;
+        this.siteTable = loaded.siteTable;
+        this.activeSiteVector = loaded.activeSiteVector;
+        this.variableSiteVector = loaded.variableSiteVector;
+        this.reducedSiteVector0 = loaded.reducedSiteVector0;
+        this.reducedSiteVector1 = loaded.reducedSiteVector1;
+        this.patternRow = loaded.patternRow;
+
+        // The reductions only hold site rows and costs, and the depth histograms only data
+        variableSites = loaded.variableSites;
+        reducedSites0 = loaded.reducedSites0;
+        reducedSites1 = loaded.reducedSites1;
+        activeConserved = loaded.activeConserved;
+        reducedConserved0 = loaded.reducedConserved0;
+        reducedConserved1 = loaded.reducedConserved1;
+
+        logGammaTable = new LogGammaTable(loaded.logGammaTable);
+        site = new Site(siteTable, nHaplo, assignmentsByMask, logGammaTable, variableSites.getSites(), store);
+    }
+
+    /**
+     * Worker side of a sharded run: the sites of one shard, as written by writeShard in the coordinator.
+     * Only the reductions and the state of their sites are held; everything else stays in the coordinator.
+     */
+    DataSet(DataInputStream in, int nHaplo, Assignment[][] assignmentsByMask, int[] nAssignDiffBases,
+            GammaCalc gammaCalc, ForkJoinPool threadPool, StateStore store) throws IOException {
+        this.nHaplo = nHaplo;
+        this.assignmentsByMask = assignmentsByMask;
+        this.nAssignDiffBases = nAssignDiffBases;
+        this.gammaCalc = gammaCalc;
+        this.threadPool = threadPool;
+        this.store = store;
+        this.nTimePoints = in.readInt();
+        int[] position = Shards.readInts(in);
+        int[] counts = Shards.readInts(in);  // [site][tp][strand][base]
+        this.siteCount = position.length;
+        siteTable = new SiteTable(nTimePoints, siteCount);
+        for (int iSite = 0; iSite < siteCount; iSite++) {
+            siteTable.addSite(position[iSite]);
+            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+                siteTable.addTimePoint(iSite, iTimePoint, counts, siteTable.offset(iSite, iTimePoint));
             }
-            return totalLogLikelihood;
-        } else if (optType == 0 && iIter > 0 && useFrac[1] < 0.99999) {
-            for (Site site : reducedSiteVector1) {
-                totalLogLikelihood += site.computeSiteLogLikelihood(currentAlphaParams, priors);
+        }
+
+        // Every site of the shard is a distinct variable site pattern of the coordinator
+        int[] patterns = new int[siteCount];
+        for (int iSite = 0; iSite < siteCount; iSite++) {
+            patterns[iSite] = iSite;
+        }
+        logGammaTable = new LogGammaTable(siteTable, patterns, nHaplo, gammaCalc, store);
+        site = new Site(siteTable, nHaplo, assignmentsByMask, logGammaTable, patterns, store);
+        variableSites = readReduction(in);
+        reducedSites0 = readReduction(in);
+        reducedSites1 = readReduction(in);
+        System.arraycopy(Shards.readDoubles(in), 0, priors, 0, priors.length);
+    }
+
+    /**
+     * Sends the sites of shard's part of the chunks of every reduction to a worker of a sharded run: their
+     * positions and reads, each once, then each reduction's part over them, then the priors. The reduced
+     * sets are only sent if they are used.
+     */
+    void writeShard(DataOutputStream out, int shard, int nShards) throws IOException {
+        SiteReduction[] parts = new SiteReduction[REDUCED_1 + 1];
+        for (int reduction = VARIABLE; reduction <= REDUCED_1; reduction++) {
+            SiteReduction sites = reduction(reduction);
+            if (reduction != VARIABLE && useFrac[reduction - REDUCED_0] >= 0.99999) {
+                sites = new SiteReduction(new int[0], new int[0], new int[]{0}, false, threadPool);
             }
-            return totalLogLikelihood;
+            int from = shardStart(sites, shard, nShards);
+            int to = shardStart(sites, shard + 1, nShards);
+            int[] chunkStart = sites.getChunkStarts();
+            int first = chunkStart[from];
+            int[] partStart = new int[to - from + 1];
+            for (int iChunk = from; iChunk <= to; iChunk++) {
+                partStart[iChunk - from] = chunkStart[iChunk] - first;
+            }
+            parts[reduction] = new SiteReduction(Arrays.copyOfRange(sites.getSites(), first, chunkStart[to]),
+                    Arrays.copyOfRange(sites.getWeights(), first, chunkStart[to]), partStart, false, threadPool);
+        }
 
-        } else if (optType == 0) {
-            for (Site site : activeSiteVector) {
-                totalLogLikelihood += site.computeSiteLogLikelihood(currentAlphaParams, priors);
+        int[] shardRow = new int[siteCount];  // [row] 1 + index among the sites sent, or 0 if not sent
+        int nSent = 0;
+        for (SiteReduction part : parts) {
+            for (int iSite : part.getSites()) {
+                if (shardRow[iSite] == 0) {
+                    shardRow[iSite] = ++nSent;
+                }
             }
-            return totalLogLikelihood;
-        } else if (optType == 1) {
-            for (Site site : variableSiteVector) {
-                totalLogLikelihood += site.computeSiteTimePointLogLikelihood(optTimePoint,
-                        currentAlphaParams, priors);
+        }
+        int[] position = new int[nSent];
+        int[] counts = new int[nSent * nTimePoints * SiteTable.STRAND_BASES];
+        for (int iSite = 0; iSite < siteCount; iSite++) {
+            if (shardRow[iSite] > 0) {
+                int iSent = shardRow[iSite] - 1;
+                position[iSent] = siteTable.position[iSite];
+                IntBuffer reads = siteTable.strandReads.duplicate();
+                ((Buffer) reads).position(siteTable.offset(iSite, 0));
+                reads.get(counts, iSent * nTimePoints * SiteTable.STRAND_BASES, nTimePoints * SiteTable.STRAND_BASES);
             }
-            return totalLogLikelihood;
-        } else if (optType == 2) {
-            for (Site site : activeSiteVector) {
-                totalLogLikelihood += site.computeSiteLogLikelihood(currentAlphaParams, priors);
+        }
+        out.writeInt(nTimePoints);
+        Shards.writeInts(out, position);
+        Shards.writeInts(out, counts);
+        for (SiteReduction part : parts) {
+            int[] sites = part.getSites().clone();
+            for (int iSite = 0; iSite < sites.length; iSite++) {
+                sites[iSite] = shardRow[sites[iSite]] - 1;
+            }
+            Shards.writeInts(out, sites);
+            Shards.writeInts(out, part.getWeights());
+            Shards.writeInts(out, part.getChunkStarts());
+        }
+        Shards.writeDoubles(out, priors);
+    }
+
+    private SiteReduction readReduction(DataInputStream in) throws IOException {
+        int[] sites = Shards.readInts(in);
+        int[] weights = Shards.readInts(in);
+        int[] chunkStart = Shards.readInts(in);
+        return new SiteReduction(sites, weights, chunkStart, store.getWindow() > 0, threadPool);
+    }
+
+    /**
+     * Parses the timepoints concurrently, then joins them by position
+     */
+    private static SiteTable readSiteTable(List<Path> dataFiles, GammaCalc gammaCalc, ForkJoinPool threadPool)
+            throws IOException {
+        List<Future<ReadCountParser.Block>> futures = new ArrayList<>();
+        for (Path dataFile : dataFiles) {
+            futures.add(threadPool.submit(() -> ReadCountParser.parse(dataFile).sort()));
+        }
+        ReadCountParser.Block[] blocks = new ReadCountParser.Block[dataFiles.size()];
+        for (int iTimePoint = 0; iTimePoint < blocks.length; iTimePoint++) {
+            try {
+                blocks[iTimePoint] = futures.get(iTimePoint).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        SiteTable siteTable = SiteTable.merge(blocks);
+        siteTable.computeFlags(gammaCalc, threadPool);
+        return siteTable;
+    }
+
+    /**
+     * Distinct patterns among the variable sites given, in order of first appearance, and the number of
+     * sites sharing each
+     */
+    private int[][] countPatterns(int[] sites) {
+        int[] count = new int[siteCount];
+        int nPatterns = 0;
+        for (int iSite : sites) {
+            if (siteTable.isConserved(iSite)) {
+                continue;
+            }
+            if (count[patternRow[iSite]]++ == 0) {
+                nPatterns++;
             }
-            return totalLogLikelihood;
+        }
+        int[] patterns = new int[nPatterns];
+        int[] weights = new int[nPatterns];
+        int iPattern = 0;
+        for (int iSite : sites) {
+            int pattern = patternRow[iSite];
+            if (!siteTable.isConserved(iSite) && count[pattern] > 0) {
+                patterns[iPattern] = pattern;
+                weights[iPattern++] = count[pattern];
+                count[pattern] = 0;
+            }
+        }
+        return new int[][]{patterns, weights};
+    }
+
+    private SiteReduction patternReduction(int[][] patterns, ForkJoinPool threadPool) {
+        return new SiteReduction(patterns[0], patterns[1], site::cost, store.getWindow(), threadPool);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    double computeTotalLogLikelihood() {
+        final double[] alphaParams = currentAlphaParams;
+        if (optType == 0 && iIter == 0 && useFrac[0] < 0.99999) {
+            return siteSum(REDUCED_0, Shards.Term.SITE, 0)
+                    + reducedConserved0.logLikelihood(alphaParams, priors);
+        } else if (optType == 0 && iIter > 0 && useFrac[1] < 0.99999) {
+            return siteSum(REDUCED_1, Shards.Term.SITE, 0)
+                    + reducedConserved1.logLikelihood(alphaParams, priors);
+        } else if (optType == 0) {
+            return siteSum(VARIABLE, Shards.Term.SITE, 0)
+                    + activeConserved.logLikelihood(alphaParams, priors);
+        } else if (optType == 1) {
+            return timePointLogLikelihood(optTimePoint);
+        } else if (optType == 2) {
+            return siteSum(VARIABLE, Shards.Term.SITE, 0)
+                    + activeConserved.logLikelihood(alphaParams, priors);
         }
         return 0.0;
     }
 
+    private double timePointLogLikelihood(int iTimePoint) {
+        return siteSum(VARIABLE, Shards.Term.TIME_POINT, iTimePoint);
+    }
+
+    // Site reductions, by the number the workers of a sharded run know them by
+    static final int VARIABLE = 0;
+    static final int REDUCED_0 = 1;
+    static final int REDUCED_1 = 2;
+
+    private SiteReduction reduction(int reduction) {
+        return reduction == REDUCED_0 ? reducedSites0 : reduction == REDUCED_1 ? reducedSites1 : variableSites;
+    }
+
+    /**
+     * Per-site term summed by a reduction
+     */
+    private IntToDoubleFunction siteTerm(Shards.Term term, int iTimePoint) {
+        switch (term) {
+            case ASSIGN:
+                return iSite -> site.assignHaplotypes(iSite, priors);
+            case SITE:
+                return iSite -> site.computeSiteLogLikelihood(iSite, priors);
+            case TIME_POINT:
+                return iSite -> site.computeSiteTimePointLogLikelihood(iSite, iTimePoint, priors);
+            default:
+                throw new IllegalArgumentException("Not a scalar term: " + term);
+        }
+    }
+
+    /**
+     * Per-site vector term summed over the variable sites, and its length
+     */
+    private SiteReduction.VectorTerm vectorTerm(Shards.Term term, int iTimePoint) {
+        switch (term) {
+            case ESTIMATES:
+                return (iSite, weight, total) -> {
+                    for (int nBase = 1; nBase < 5; nBase++) {
+                        total[nBase] += weight * site.getEstProbDiffBases(iSite, nBase);
+                    }
+                };
+            case GRADIENT:
+                return (iSite, weight, total) -> site.addTimePointGradient(iSite, iTimePoint, priors, weight, total);
+            default:
+                throw new IllegalArgumentException("Not a vector term: " + term);
+        }
+    }
+
+    private int vectorLength(Shards.Term term) {
+        return term == Shards.Term.GRADIENT ? nHaplo + 1 : 5;
+    }
+
+    /**
+     * Sum of a site term over a reduction, in this process or from the chunk sums of the workers, which are
+     * combined in the same tree
+     */
+    private double siteSum(int reduction, Shards.Term term, int iTimePoint) {
+        if (shards == null) {
+            return reduction(reduction).sum(siteTerm(term, iTimePoint));
+        }
+        return reduction(reduction).combine(shards.sum(shardCluster, reduction, term, iTimePoint));
+    }
+
+    private double[] vectorSum(Shards.Term term, int iTimePoint) {
+        if (shards == null) {
+            return variableSites.sum(vectorLength(term), vectorTerm(term, iTimePoint));
+        }
+        return variableSites.combine(vectorLength(term), shards.vectorSum(shardCluster, term, iTimePoint));
+    }
+
+    /**
+     * Hands the site sums of this dataset to the workers of a sharded run, which hold it as cluster
+     * shardCluster. From here on every change of parameters is sent to them as well. The sites are only
+     * evaluated here once more, for the results, so their cached terms are dropped.
+     */
+    void setShards(Shards shards, int shardCluster) {
+        this.shards = shards;
+        this.shardCluster = shardCluster;
+        site.dropTermCaches();
+    }
+
+    /**
+     * Worker side of a sharded run: the sums of every chunk of a reduction, which here holds only the
+     * chunks of this worker's shard
+     */
+    double[] shardSum(int reduction, Shards.Term term, int iTimePoint) {
+        SiteReduction sites = reduction(reduction);
+        double[] sums = sites.sumChunks(siteTerm(term, iTimePoint), 0, sites.chunkCount());
+        if (term == Shards.Term.ASSIGN && reduction == VARIABLE) {
+            // The reduced sets are chunked apart from the variable sites, so the assignment probabilities their
+            // chunks read are also brought up to date here
+            for (int reduced = REDUCED_0; reduced <= REDUCED_1; reduced++) {
+                if (useFrac[reduced - REDUCED_0] < 0.99999) {
+                    shardSum(reduced, term, iTimePoint);
+                }
+            }
+        }
+        return sums;
+    }
+
+    double[][] shardVectorSum(Shards.Term term, int iTimePoint) {
+        return variableSites.sumChunks(vectorLength(term), vectorTerm(term, iTimePoint), 0, variableSites.chunkCount());
+    }
+
+    /**
+     * First chunk of a reduction in shard, of nShards that split its chunks evenly
+     */
+    private static int shardStart(SiteReduction sites, int shard, int nShards) {
+        return (int) ((long) sites.chunkCount() * shard / nShards);
+    }
+
+    void setPriors(double[] priors) {
+        System.arraycopy(priors, 0, this.priors, 0, this.priors.length);
+        if (shards != null) {
+            shards.setPriors(shardCluster, this.priors);
+        }
+    }
+
+    double[] getPriors() {
+        return priors.clone();
+    }
+
+    /**
+     * Assignment probabilities of the variable sites, for a checkpoint
+     */
+    DoubleBuffer getAssignmentProbabilities() {
+        return site.getProbAssignment();
+    }
+
+    void setAssignmentProbabilities(DoubleBuffer probabilities) {
+        site.setProbAssignment(probabilities);
+    }
+
     void setOptType(int optType, int optTimePoint, double[][] hapParams, double[] alphaParams, int iIter) {
         this.optType = optType;
         this.optTimePoint = optTimePoint;
+        this.optObjective = optType == 1 ? new TimePointObjective(optTimePoint) : null;
         this.iIter = iIter;
         updateAllParams(hapParams, alphaParams);
         if (this.verbose) {
@@ -159,6 +578,14 @@ public class DataSet implements MultivariateFunction {
     }
 
     double assignHaplotypes() {
+        return assignHaplotypes(false);
+    }
+
+    /**
+     * @param local evaluate in this process even in a sharded run, leaving the assignment probabilities of
+     *              every site here for the results
+     */
+    double assignHaplotypes(boolean local) {
         if (this.verbose) {
             System.out.print(Arrays.toString(currentAlphaParams));
             for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
@@ -166,10 +593,10 @@ public class DataSet implements MultivariateFunction {
             }
             System.out.println();
         }
-        currentLogLikelihood = 0.0;
-        for (Site site : activeSiteVector) {
-            currentLogLikelihood += site.assignHaplotypes(currentAlphaParams, priors);
-        }
+        final double[] alphaParams = currentAlphaParams;
+        double sitesLogLikelihood = local ? variableSites.sum(siteTerm(Shards.Term.ASSIGN, 0))
+                : siteSum(VARIABLE, Shards.Term.ASSIGN, 0);
+        currentLogLikelihood = sitesLogLikelihood + activeConserved.logLikelihood(alphaParams, priors);
         // System.out.printf("opt (%d) lnL: %.9f\n", assignHaplotypesCount, currentLogLikelihood);
         assignHaplotypesCount++;
         return currentLogLikelihood;
@@ -181,32 +608,27 @@ public class DataSet implements MultivariateFunction {
     void updateAllParams(double[][] hapParams, double[] alphaParams) {
         currentAlphaParams = alphaParams;
         currentPiHap = computePiHap(hapParams);
-        for (Assignment assignment : assignmentVector) {
-            assignment.setAllParams(currentPiHap, currentAlphaParams);
+        logGammaTable.setParams(currentPiHap, currentAlphaParams);
+        if (shards != null) {
+            shards.setParams(shardCluster, hapParams, alphaParams);
         }
     }
 
     void updateFracConserved() {
-        double[] count = new double[5];
-        for (Site site : activeSiteVector) {
-            int iSite = site.iSite;
-            if (site.siteConserved) {
-                count[1]++;
-            } else {
-                for (int nBase = 1; nBase < 5; nBase++) {
-                    count[nBase] += site.estProbDiffBases[nBase];
-                }
-            }
-        }
+        double[] count = vectorSum(Shards.Term.ESTIMATES, 0);
+        count[1] += activeSiteVector.length - variableSiteVector.length;   // conserved sites
 
         if (this.verbose) {
             System.out.print("hhh");
             for (int iCount = 1; iCount < 5; iCount++) {
-                priors[iCount] = Math.log((count[iCount] / (activeSiteVector.size()
+                priors[iCount] = Math.log((count[iCount] / (activeSiteVector.length
                         * (nAssignDiffBases[iCount] + 1.0E-20))));
                 System.out.print("\t" + Math.exp(priors[iCount]));
             }
             System.out.println();
+            if (shards != null) {
+                shards.setPriors(shardCluster, priors);
+            }
         }
     }
 
@@ -215,8 +637,9 @@ public class DataSet implements MultivariateFunction {
      */
     void updateAlphaParams(double[] alphaParams) {
         currentAlphaParams = alphaParams;
-        for (Assignment assignment : assignmentVector) {
-            assignment.setAllParams(currentPiHap, currentAlphaParams);
+        logGammaTable.setParams(currentPiHap, currentAlphaParams);
+        if (shards != null) {
+            shards.setAlpha(shardCluster, alphaParams);
         }
     }
 
@@ -224,9 +647,10 @@ public class DataSet implements MultivariateFunction {
      * Update to new values of hapParams for single timepoint
      */
     void updateSingleHapParams(int iTimePoint, double[] hapParams) {
-        currentPiHap[iTimePoint] = computePiHap(hapParams);
-        for (Assignment assignment : assignmentVector) {
-            assignment.setSinglePiHap(iTimePoint, currentPiHap[iTimePoint]);
+        computePiHap(hapParams, currentPiHap[iTimePoint]);  // in place, as this runs on every evaluation
+        logGammaTable.setPiHap(iTimePoint, currentPiHap[iTimePoint]);
+        if (shards != null) {
+            shards.setTimePoint(shardCluster, iTimePoint, hapParams);
         }
     }
 
@@ -244,25 +668,150 @@ public class DataSet implements MultivariateFunction {
                 System.out.println("\t" + val);
             }
             iCount++;
+            nEvaluations.increment();
             return -val;
         } else if (optType == 1) {
-            updateSingleHapParams(optTimePoint, params);
-            double val = computeTotalLogLikelihood();
-            if (this.verbose && iCount % 10 == 0) {
-                System.out.print(Arrays.toString(currentAlphaParams));
-                for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                    System.out.print("  " + Arrays.toString(currentPiHap[iTimePoint]));
-                }
+            return optObjective.value(params);
+        }
+        System.out.println("Error in optimisation");
+        System.exit(1);
+        return 0.0;
+    }
+
+    /**
+     * See Site.setPruneMargin
+     */
+    void setPruneMargin(double margin) {
+        site.setPruneMargin(margin);
+    }
+
+    /**
+     * Likelihood kernels of the variable sites, for KernelAllocationTest
+     */
+    Site getSite() {
+        return site;
+    }
+
+    /**
+     * Rows of the variable site patterns, which the kernels of getSite() are evaluated on
+     */
+    int[] getVariableSites() {
+        return countPatterns(variableSiteVector)[0];
+    }
+
+    /**
+     * Evaluates the likelihood of any parameters without touching the state of this DataSet, built on first use
+     */
+    synchronized LikelihoodEngine getLikelihoodEngine() {
+        if (likelihoodEngine == null) {
+            likelihoodEngine = new LikelihoodEngine(siteTable, assignmentsByMask, logGammaTable, variableSites,
+                    activeConserved, patternRow, variableSites.getSites());
+        }
+        return likelihoodEngine;
+    }
+
+    /**
+     * Snapshot of the given parameters with the current priors, for getLikelihoodEngine()
+     */
+    LikelihoodEngine.Params snapshot(double[][] hapParams, double[] alphaParams) {
+        return new LikelihoodEngine.Params(alphaParams, computePiHap(hapParams), priors);
+    }
+
+    /**
+     * Number of adjustable parameters: the error model and the frequencies of each timepoint
+     */
+    int getParameterCount() {
+        return 3 + (nHaplo - 1) * nTimePoints;
+    }
+
+    /**
+     * Number of active sites, the sample size of information criteria
+     */
+    int getActiveSiteCount() {
+        return activeSiteVector.length;
+    }
+
+    /**
+     * Number of objective evaluations so far
+     */
+    long getEvaluationCount() {
+        return nEvaluations.sum();
+    }
+
+    /**
+     * Objective of the haplotype frequencies of one timepoint, for the current assignment probabilities.
+     * setOptType(1, ...) must first have set the parameters of every timepoint.
+     */
+    TimePointObjective timePointObjective(int iTimePoint) {
+        return new TimePointObjective(iTimePoint);
+    }
+
+    /**
+     * Negative log-likelihood of one timepoint as a function of its hapParams.
+     * <p>
+     * An evaluation only changes the frequencies of its own timepoint, and through them only that
+     * timepoint's LogGammaTable entries and Site term caches, so objectives of different timepoints may be
+     * evaluated concurrently. One objective must not be evaluated from two threads at once.
+     */
+    class TimePointObjective implements MultivariateFunction, UnivariateFunction {
+        private final int iTimePoint;
+        private final double[] singleParam = new double[1];  // Brent's parameter, as the params of value()
+        private int iCount = 0;  // Evaluations of this objective
+
+        private TimePointObjective(int iTimePoint) {
+            this.iTimePoint = iTimePoint;
+        }
+
+        @Override
+        public double value(double[] params) {
+            updateSingleHapParams(iTimePoint, params);
+            double val = timePointLogLikelihood(iTimePoint);
+            if (verbose && iCount % 10 == 0) {
+                System.out.print(Arrays.toString(currentAlphaParams) + "  " + Arrays.toString(currentPiHap[iTimePoint]));
                 System.out.println();
-                System.out.print("xxx\t" + Arrays.toString(params));
+                System.out.print("xxx\t" + iTimePoint + "\t" + Arrays.toString(params));
                 System.out.println("\t" + val);
             }
             iCount++;
+            nEvaluations.increment();
             return -val;
         }
-        System.out.println("Error in optimisation");
-        System.exit(1);
-        return 0.0;
+
+        @Override
+        public double value(double singleParam) {
+            this.singleParam[0] = singleParam;
+            return value(this.singleParam);
+        }
+
+        /**
+         * As value(params), also setting gradient to its derivatives with respect to params
+         */
+        double valueAndGradient(double[] params, double[] gradient) {
+            updateSingleHapParams(iTimePoint, params);
+            double[] sum = vectorSum(Shards.Term.GRADIENT, iTimePoint);
+
+            // Chain rule through the stick-breaking map, piHap[i] = params[i] * prod_{j < i} (1 - params[j])
+            for (int iParam = 0; iParam < nHaplo - 1; iParam++) {
+                double remaining = 1.0;  // product of (1 - params[j]) over j < iParam
+                for (int j = 0; j < iParam; j++) {
+                    remaining *= 1.0 - params[j];
+                }
+                double derivative = remaining * sum[1 + iParam];
+                for (int iHaplo = iParam + 1; iHaplo < nHaplo; iHaplo++) {
+                    double dPi = -(iHaplo < nHaplo - 1 ? params[iHaplo] : 1.0);  // d piHap[iHaplo] / d params[iParam]
+                    for (int j = 0; j < iHaplo; j++) {
+                        if (j != iParam) {
+                            dPi *= 1.0 - params[j];
+                        }
+                    }
+                    derivative += dPi * sum[1 + iHaplo];
+                }
+                gradient[iParam] = -derivative;
+            }
+            iCount++;
+            nEvaluations.increment();
+            return -sum[0];
+        }
     }
 
     public double value(double singleParam) {
@@ -273,7 +822,7 @@ public class DataSet implements MultivariateFunction {
 
     void printResults() {
         System.out.println("\nResults for nHaplotypes = " + nHaplo);
-        int nParams = 3 + (nHaplo - 1) * nTimePoints;
+        int nParams = getParameterCount();
         System.out.println("Number of adjustable parameters: " + nParams);
         System.out.println("Final likelihood: " + currentLogLikelihood);
         System.out.println("Dirichlet parameters for errors: " + currentAlphaParams[0] + "\t" + currentAlphaParams[1]
@@ -294,8 +843,8 @@ public class DataSet implements MultivariateFunction {
         if (true) {
             System.out.println("Haplotypes");
             int nSites = 0;
-            for (Site site : activeSiteVector) {
-                nSites = Math.max(nSites, site.iSite + 1);
+            for (int iSite : activeSiteVector) {
+                nSites = Math.max(nSites, siteTable.position[iSite] + 1);
             }
             int[][] bestBase = new int[nHaplo][nSites];
             double[][] probBestBase = new double[nHaplo][nSites];
@@ -306,15 +855,15 @@ public class DataSet implements MultivariateFunction {
                 }
             }
 
-            for (Site site : activeSiteVector) {
-                int iSite = site.iSite;
-                if (site.siteConserved) {
+            for (int iRow : activeSiteVector) {
+                int iSite = siteTable.position[iRow];
+                if (siteTable.isConserved(iRow)) {
                     for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
-                        bestBase[iHaplo][iSite] = site.conservedBase;
+                        bestBase[iHaplo][iSite] = siteTable.conservedBase[iRow];
                         probBestBase[iHaplo][iSite] = 1.0;
                     }
                 } else {
-                    double[][] probBase = site.getProbBase();
+                    double[][] probBase = site.getProbBase(patternRow[iRow]);
                     for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
                         for (int iBase = 0; iBase < 4; iBase++) {
                             if (probBase[iHaplo][iBase] > probBestBase[iHaplo][iSite]) {
@@ -375,7 +924,13 @@ public class DataSet implements MultivariateFunction {
      * compute new values of piHap for single time point
      */
     double[] computePiHap(double[] hapParams) {
-        double[] piHap = new double[nHaplo];
+        return computePiHap(hapParams, new double[nHaplo]);
+    }
+
+    /**
+     * As computePiHap(hapParams), writing the frequencies into piHap
+     */
+    double[] computePiHap(double[] hapParams, double[] piHap) {
         double remaining = 1.0;
         for (int iHaplo = 0; iHaplo < nHaplo - 1; iHaplo++) {
             piHap[iHaplo] = remaining * hapParams[iHaplo];
@@ -385,6 +940,27 @@ public class DataSet implements MultivariateFunction {
         return piHap;
     }
 
+    /**
+     * Number of assignments evaluated over the variable site patterns
+     */
+    int getLocalAssignmentCount() {
+        return site.getProbAssignment().capacity();
+    }
+
+    /**
+     * Number of distinct read patterns among the variable sites
+     */
+    int getPatternCount() {
+        return variableSites.size();
+    }
+
+    /**
+     * Number of distinct strand depths, over all timepoints, among the conserved sites
+     */
+    int getConservedDepthCount() {
+        return activeConserved.size();
+    }
+
     int getNTimePoints() {
         return nTimePoints;
     }
@@ -0,0 +1,188 @@
+package rag.harold;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded logGamma cache on primitive arrays, without boxing.
+ * <p>
+ * Entries live in open-addressed buckets of {@link #WAYS} slots, found by a hash of the argument's bits.
+ * A full bucket evicts with the clock policy: its hand sweeps the slots, clearing reference bits, and
+ * replaces the first slot not used since the last sweep. The cache is either split into stripes, each
+ * guarded by its own lock and picked by hash, or kept as one unlocked shard per thread. The capacity is
+ * rounded down to whole buckets, and at least one: striped buckets are shared out so that the stripes
+ * hold that many slots between them. Hit, miss and
+ * eviction counts are kept per stripe or shard and summed on request. Missing values come from the
+ * underlying engine; rising factorials are only built from cached values for the Commons Math engine, as the
+ * others compute them directly without cancellation.
+ */
+class GammaCache extends GammaCalc {
+    static final int WAYS = 8;  // Slots per bucket
+    private static final int STRIPES = 64;
+
+    private final GammaCalc engine;
+    private final boolean cacheRisingFactorial;
+    private final int nBuckets;     // buckets in all the stripes, or in each thread's shard
+    private final Shard[] stripes;  // null when using per-thread shards
+    private final ThreadLocal<Shard> threadShard;
+    private final List<Shard> shards = new ArrayList<>();  // every shard, for the counters
+
+    /**
+     * @param capacity  number of values cached, in total when striped or by each thread otherwise
+     * @param perThread give each thread its own shard rather than sharing locked stripes
+     * @param engine    computes the values that are not cached
+     * @param cacheRisingFactorial build rising factorials from two cached logGamma values rather than
+     *                  asking the engine
+     */
+    GammaCache(int capacity, boolean perThread, GammaCalc engine, boolean cacheRisingFactorial) {
+        this.engine = engine;
+        this.cacheRisingFactorial = cacheRisingFactorial;
+        nBuckets = Math.max(1, capacity / WAYS);
+        if (perThread) {
+            stripes = null;
+            threadShard = ThreadLocal.withInitial(() -> {
+                Shard shard = new Shard(nBuckets, engine);
+                synchronized (shards) {
+                    shards.add(shard);
+                }
+                return shard;
+            });
+        } else {
+            stripes = new Shard[Math.min(STRIPES, nBuckets)];
+            for (int iStripe = 0; iStripe < stripes.length; iStripe++) {
+                int stripeBuckets = (int) ((long) nBuckets * (iStripe + 1) / stripes.length
+                        - (long) nBuckets * iStripe / stripes.length);
+                stripes[iStripe] = new Shard(stripeBuckets, engine);
+                shards.add(stripes[iStripe]);
+            }
+            threadShard = null;
+        }
+    }
+
+    @Override
+    public final double logGamma(final double x) {
+        long bits = Double.doubleToRawLongBits(x);
+        long hash = mix(bits);
+        if (stripes == null) {
+            return threadShard.get().logGamma(x, bits, hash);
+        }
+        Shard stripe = stripes[scale(hash >>> 32, stripes.length)];  // top half picks the stripe, bottom the bucket
+        synchronized (stripe) {
+            return stripe.logGamma(x, bits, hash);
+        }
+    }
+
+    @Override
+    public final double logRisingFactorial(final double a, final int n) {
+        return cacheRisingFactorial ? super.logRisingFactorial(a, n) : engine.logRisingFactorial(a, n);
+    }
+
+    /**
+     * Slots of the stripes together, or of each thread's shard
+     */
+    int getCapacity() {
+        if (stripes == null) {
+            return nBuckets * WAYS;
+        }
+        int capacity = 0;
+        for (Shard stripe : stripes) {
+            capacity += stripe.keys.length;
+        }
+        return capacity;
+    }
+
+    long getHits() {
+        synchronized (shards) {
+            return shards.stream().mapToLong(shard -> shard.hits).sum();
+        }
+    }
+
+    long getMisses() {
+        synchronized (shards) {
+            return shards.stream().mapToLong(shard -> shard.misses).sum();
+        }
+    }
+
+    long getEvictions() {
+        synchronized (shards) {
+            return shards.stream().mapToLong(shard -> shard.evictions).sum();
+        }
+    }
+
+    /**
+     * Murmur3 finaliser, spreading the argument's bits over the hash
+     */
+    private static long mix(long bits) {
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        bits *= 0xc4ceb9fe1a85ec53L;
+        bits ^= bits >>> 33;
+        return bits;
+    }
+
+    /**
+     * Maps 32 hash bits evenly onto [0, n), without n having to be a power of two
+     */
+    private static int scale(long bits32, int n) {
+        return (int) ((bits32 * n) >>> 32);
+    }
+
+    private static final class Shard {
+        private static final byte EMPTY = 0;
+        private static final byte FILLED = 1;
+        private static final byte REFERENCED = 2;
+
+        private final GammaCalc engine;
+        private final int nBuckets;
+        private final long[] keys;     // [bucket][way] raw bits of the argument
+        private final double[] values;
+        private final byte[] state;
+        private final byte[] hand;     // [bucket] next way the clock looks at
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        Shard(int nBuckets, GammaCalc engine) {
+            this.engine = engine;
+            this.nBuckets = nBuckets;
+            keys = new long[nBuckets * WAYS];
+            values = new double[nBuckets * WAYS];
+            state = new byte[nBuckets * WAYS];
+            hand = new byte[nBuckets];
+        }
+
+        double logGamma(double x, long bits, long hash) {
+            int bucket = scale(hash & 0xffffffffL, nBuckets);
+            int start = bucket * WAYS;
+            for (int iWay = start; iWay < start + WAYS; iWay++) {
+                if (state[iWay] == EMPTY) {
+                    misses++;
+                    return put(iWay, x, bits);
+                }
+                if (keys[iWay] == bits) {
+                    hits++;
+                    state[iWay] = REFERENCED;
+                    return values[iWay];
+                }
+            }
+            misses++;
+            evictions++;
+            int iWay = start + hand[bucket];
+            while (state[iWay] == REFERENCED) {
+                state[iWay] = FILLED;
+                iWay = (iWay + 1 < start + WAYS) ? iWay + 1 : start;
+            }
+            hand[bucket] = (byte) ((iWay + 1 - start) % WAYS);
+            return put(iWay, x, bits);
+        }
+
+        private double put(int iWay, double x, long bits) {
+            double value = engine.logGamma(x);
+            keys[iWay] = bits;
+            values[iWay] = value;
+            state[iWay] = FILLED;
+            return value;
+        }
+    }
+}
@@ -1,42 +1,65 @@
 package rag.harold;
 
 import org.apache.commons.math3.special.Gamma;
-import org.cache2k.Cache;
-import org.cache2k.Cache2kBuilder;
-import org.cache2k.integration.CacheLoader;
 
 public abstract class GammaCalc {
 
+    /**
+     * How logGamma is evaluated: COMMONS uses Commons Math, ACCURATE and FAST use the Stirling series of
+     * {@link FastGammaCalc} to within about 1e-15 and 1e-9 respectively
+     */
+    public enum Mode {
+        COMMONS, ACCURATE, FAST
+    }
+
     public static GammaCalc get(final int cacheSize) {
-        if (cacheSize == 0) {
-            return new GammaCalc() {
+        return get(cacheSize, false, Mode.COMMONS);
+    }
+
+    /**
+     * Uncached when cacheSize is 0, otherwise a {@link GammaCache} of that many values, shared through
+     * locked stripes or, if perThread, held separately by each thread
+     */
+    public static GammaCalc get(final int cacheSize, final boolean perThread, final Mode mode) {
+        final GammaCalc engine;
+        if (mode == Mode.COMMONS) {
+            engine = new GammaCalc() {
                 @Override
                 public final double logGamma(final double x) {
                     return Gamma.logGamma(x);
                 }
             };
         } else {
-            return new GammaCalc() {
-                private final Cache<Double, Double> logGammaCache = new Cache2kBuilder<Double, Double>() {
-                }
-                        .name("logGamma")
-                        .entryCapacity(cacheSize)
-                        .loader(new CacheLoader<Double, Double>() {
-                            @Override
-                            public Double load(final Double x) {
-                                return Gamma.logGamma(x);
-                            }
-                        })
-                        .build();
-
-                @Override
-                public final double logGamma(final double x) {
-                    return this.logGammaCache.get(x);
-                }
-            };
+            engine = new FastGammaCalc(mode);
+        }
+        if (cacheSize == 0) {
+            return engine;
+        } else {
+            return new GammaCache(cacheSize, perThread, engine, mode == Mode.COMMONS);
         }
     }
 
     public abstract double logGamma(final double x);
-}
 
+    /**
+     * lgamma(a + n) - lgamma(a), the log of the rising factorial a (a + 1) ... (a + n - 1)
+     */
+    public double logRisingFactorial(final double a, final int n) {
+        return logGamma(a + n) - logGamma(a);
+    }
+
+    /**
+     * psi(a + n) - psi(a), the derivative of logRisingFactorial with respect to a, summed directly for
+     * small n
+     */
+    public double digammaDifference(final double a, final int n) {
+        if (n <= 16) {
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / (a + i);
+            }
+            return sum;
+        }
+        return Gamma.digamma(a + n) - Gamma.digamma(a);
+    }
+}
@@ -0,0 +1,48 @@
+package rag.harold;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Process-wide limit on the live Java heap, set by --max-heap and checked after each streaming window.
+ * <p>
+ * Heap in use counts garbage too, so crossing the limit first forces a collection; only if the live heap
+ * is still over the limit does the run stop, as it would otherwise keep growing with the genome.
+ */
+final class HeapLimit {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static volatile long limit = 0;  // bytes, 0 for no limit
+
+    private HeapLimit() {
+    }
+
+    static void set(long bytes) {
+        limit = bytes;
+    }
+
+    static long get() {
+        return limit;
+    }
+
+    /**
+     * Throws IllegalStateException if the live heap exceeds the limit
+     */
+    static void check() {
+        long max = limit;
+        if (max == 0 || MEMORY.getHeapMemoryUsage().getUsed() <= max) {
+            return;
+        }
+        synchronized (HeapLimit.class) {
+            if (MEMORY.getHeapMemoryUsage().getUsed() <= max) {
+                return;
+            }
+            System.gc();
+            long used = MEMORY.getHeapMemoryUsage().getUsed();
+            if (used > max) {
+                throw new IllegalStateException(String.format(
+                        "Live heap of %.1f MB is over the --max-heap limit of %d MB; use --stream or a smaller --window",
+                        used / 1048576.0, max >> 20));
+            }
+        }
+    }
+}
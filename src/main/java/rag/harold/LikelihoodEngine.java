@@ -0,0 +1,143 @@
+package rag.harold;
+
+import java.util.Arrays;
+
+/**
+ * Log-likelihood of a cluster's data for an immutable parameter snapshot.
+ * <p>
+ * Only the data, which never change after loading, are shared. Each evaluation fills its own LogGammaTable
+ * (sharing the read-count slots of the cluster's table) and, if asked for, its own array of posteriors,
+ * so any number of evaluations may run at once on one loaded dataset. The log-likelihood is the one
+ * DataSet.assignHaplotypes returns: each site is summed over its assignments, weighted by their priors,
+ * and the conserved sites are added from their depth histograms.
+ */
+class LikelihoodEngine {
+    private final SiteTable table;
+    private final int nTimePoints;
+    private final Assignment[][] assignmentsByMask;  // [present-base mask] assignments using only those bases
+    private final LogGammaTable template;
+    private final SiteReduction variableSites;  // Variable site patterns, weighted by the sites they stand for
+    private final ConservedDepths conserved;
+    private final int[] patternRow;  // [site] row evaluated in the site's place
+    private final int[] posteriorOffset;  // [pattern] start of the pattern's entries in a posterior array
+
+    /**
+     * patterns are the rows of the variable site patterns, in the order of template
+     */
+    LikelihoodEngine(SiteTable table, Assignment[][] assignmentsByMask, LogGammaTable template,
+                     SiteReduction variableSites, ConservedDepths conserved, int[] patternRow, int[] patterns) {
+        this.table = table;
+        this.nTimePoints = table.nTimePoints;
+        this.assignmentsByMask = assignmentsByMask;
+        this.template = template;
+        this.variableSites = variableSites;
+        this.conserved = conserved;
+        this.patternRow = patternRow;
+        posteriorOffset = new int[patterns.length + 1];
+        for (int iPattern = 0; iPattern < patterns.length; iPattern++) {
+            posteriorOffset[iPattern + 1] = posteriorOffset[iPattern] + localAssignments(patterns[iPattern]).length;
+        }
+    }
+
+    /**
+     * Parameters of one evaluation, copied on construction
+     */
+    static final class Params {
+        private final double[] alphaParams;  // alpha0 and alphaE
+        private final double[][] piHap;      // [tp][haplotype] frequencies
+        private final double[] priors;       // [number of bases present] log prior of an assignment
+
+        Params(double[] alphaParams, double[][] piHap, double[] priors) {
+            this.alphaParams = alphaParams.clone();
+            this.piHap = new double[piHap.length][];
+            for (int iTimePoint = 0; iTimePoint < piHap.length; iTimePoint++) {
+                this.piHap[iTimePoint] = piHap[iTimePoint].clone();
+            }
+            this.priors = priors.clone();
+        }
+    }
+
+    /**
+     * Log-likelihood and, if requested, the posterior probabilities of each site's assignments
+     */
+    final class Result {
+        private final double logLikelihood;
+        private final double[] posteriors;  // [pattern][local assignment], or null
+
+        private Result(double logLikelihood, double[] posteriors) {
+            this.logLikelihood = logLikelihood;
+            this.posteriors = posteriors;
+        }
+
+        double getLogLikelihood() {
+            return logLikelihood;
+        }
+
+        /**
+         * Posterior probabilities of getAssignments(iSite), for a variable site
+         */
+        double[] getPosteriors(int iSite) {
+            int iPattern = template.patternIndex(patternRow[iSite]);
+            return Arrays.copyOfRange(posteriors, posteriorOffset[iPattern], posteriorOffset[iPattern + 1]);
+        }
+    }
+
+    /**
+     * Assignments compatible with the bases present at a site, in the order of its posteriors
+     */
+    Assignment[] getAssignments(int iSite) {
+        return localAssignments(iSite);
+    }
+
+    double logLikelihood(Params params) {
+        return evaluate(params, false).getLogLikelihood();
+    }
+
+    Result evaluate(Params params, boolean withPosteriors) {
+        LogGammaTable logGamma = new LogGammaTable(template);
+        logGamma.setParams(params.piHap, params.alphaParams);
+        double[] posteriors = withPosteriors ? new double[posteriorOffset[posteriorOffset.length - 1]] : null;
+        double logLikelihood = variableSites.sum(iSite -> siteLogLikelihood(logGamma, iSite, params.priors, posteriors))
+                + conserved.logLikelihood(params.alphaParams, params.priors);
+        return new Result(logLikelihood, posteriors);
+    }
+
+    /**
+     * Log-likelihood of a variable site over all its assignments, as Site.assignHaplotypes, writing the
+     * posteriors of the assignments into posteriors if not null
+     */
+    private double siteLogLikelihood(LogGammaTable logGamma, int iSite, double[] priors, double[] posteriors) {
+        Assignment[] local = localAssignments(iSite);
+        double siteStrandTerm = 0.0;
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            siteStrandTerm += logGamma.strandTerm(iSite, iTimePoint);
+        }
+        double[] logLikelihoodAssign = Scratch.get().assign(local.length);
+        double bestAssignVal = -1.0E20;
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            Assignment assignment = local[iAssign];
+            logLikelihoodAssign[iAssign] = nTimePoints * priors[assignment.nPresent] + siteStrandTerm;
+            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+                logLikelihoodAssign[iAssign] += assignment.computeAssignmentLogLikelihood(logGamma, iTimePoint,
+                        logGamma.slotOffset(iSite, iTimePoint));
+            }
+            bestAssignVal = Math.max(bestAssignVal, logLikelihoodAssign[iAssign]);
+        }
+        double sumProb = 0.0;
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            logLikelihoodAssign[iAssign] = Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
+            sumProb += logLikelihoodAssign[iAssign];
+        }
+        if (posteriors != null) {
+            int posteriorStart = posteriorOffset[logGamma.patternIndex(iSite)];
+            for (int iAssign = 0; iAssign < local.length; iAssign++) {
+                posteriors[posteriorStart + iAssign] = logLikelihoodAssign[iAssign] / sumProb;
+            }
+        }
+        return bestAssignVal + Math.log(sumProb);
+    }
+
+    private Assignment[] localAssignments(int iSite) {
+        return assignmentsByMask[table.presentBase[iSite]];
+    }
+}
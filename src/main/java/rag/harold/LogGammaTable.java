@@ -0,0 +1,242 @@
+package rag.harold;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-gamma terms of the Dirichlet-multinomial likelihood at variable sites, indexed by haplotype subset.
+ * <p>
+ * At a given timepoint the Dirichlet parameter for a base is alpha0 * p + alphaE * (1 - p), where p is the
+ * summed frequency of the haplotypes an assignment gives that base. There are only 2^nHaplo such subsets,
+ * so each term lgamma(alphaObs + n) - lgamma(alphaObs) is stored once per (subset mask, read count) and
+ * shared by every site and assignment. Read counts are replaced by slots into the distinct counts seen at
+ * each timepoint. A timepoint's entries are cleared when its haplotype frequencies or the alpha
+ * parameters change and are then filled on first use by whichever thread needs them; concurrent fills of
+ * the same entry write the same value, so no locking is needed. Entries are held as the raw bits of the
+ * double in an AtomicLongArray, since a plain double write need not be atomic (JLS 17.7) and a reader
+ * racing a fill could otherwise see half of the new value: volatile long reads and writes are atomic, so a
+ * reader sees either the NaN of a cleared entry or a complete value. Clearing happens between parallel
+ * evaluations, which fork/join orders before every read. Each change also advances the timepoint's
+ * generation, which tells callers caching values derived from the table that they are stale.
+ */
+class LogGammaTable {
+    private final GammaCalc gamma;
+    private final SiteTable table;
+    private final int nTimePoints;
+    private final int nMasks;
+    private final int[] variableIndex;   // [site] index among the variable site patterns, or -1
+    final IntBuffer slot;                // [variable site][tp][strand][base] slot of the read count, -1 if none
+    private final int[][] slotCount;     // [tp][slot] read count
+    private final double[][] maskPi;     // [tp][mask] summed frequency of those haplotypes
+    private final double[][] maskAlphaObs;  // [tp][mask] Dirichlet parameter of a base held by those haplotypes
+    private static final long UNSET = Double.doubleToRawLongBits(Double.NaN);
+
+    private final AtomicLongArray[] values;     // [tp][mask][slot] double bits, NaN until computed
+    private final AtomicLongArray[] derivatives;  // [tp][mask][slot] bits of d values / d alphaObs, NaN until computed
+    private final int[] generation;      // [tp] number of times the timepoint's entries were cleared
+    private double alpha0 = 0.0;
+    private double alphaE = 0.0;
+    private double sumAlphaObs = 0.0;    // Same for every assignment as piNuc sums to one
+
+    LogGammaTable(SiteTable table, int[] variableSites, int nHaplo, GammaCalc gammaCalc, StateStore store) {
+        this.gamma = gammaCalc;
+        this.table = table;
+        this.nTimePoints = table.nTimePoints;
+        this.nMasks = 1 << nHaplo;
+        variableIndex = new int[table.size()];
+        Arrays.fill(variableIndex, -1);
+        slot = store.ints(variableSites.length * nTimePoints * SiteTable.STRAND_BASES);
+        slotCount = new int[nTimePoints][];
+        maskPi = new double[nTimePoints][nMasks];
+        maskAlphaObs = new double[nTimePoints][nMasks];
+        values = new AtomicLongArray[nTimePoints];
+        derivatives = new AtomicLongArray[nTimePoints];
+        generation = new int[nTimePoints];
+
+        for (int iVariable = 0; iVariable < variableSites.length; iVariable++) {
+            variableIndex[variableSites[iVariable]] = iVariable;
+        }
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            BitSet seen = new BitSet();  // distinct read counts, so the working set depends on depth, not sites
+            for (int iSite : variableSites) {
+                int offset = table.offset(iSite, iTimePoint);
+                for (int iRead = 0; iRead < SiteTable.STRAND_BASES; iRead++) {
+                    int count = table.strandReads.get(offset + iRead);
+                    if (count > 0) {
+                        seen.set(count);
+                    }
+                }
+            }
+            slotCount[iTimePoint] = seen.stream().toArray();
+            int nSlots = slotCount[iTimePoint].length;
+            values[iTimePoint] = new AtomicLongArray(nMasks * nSlots);
+            derivatives[iTimePoint] = new AtomicLongArray(nMasks * nSlots);
+
+            for (int iVariable = 0; iVariable < variableSites.length; iVariable++) {
+                int offset = table.offset(variableSites[iVariable], iTimePoint);
+                int slotOffset = slotOffsetOfVariable(iVariable, iTimePoint);
+                for (int iRead = 0; iRead < SiteTable.STRAND_BASES; iRead++) {
+                    int count = table.strandReads.get(offset + iRead);
+                    slot.put(slotOffset + iRead, count > 0 ? Arrays.binarySearch(slotCount[iTimePoint], count) : -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Empty table sharing the read-count slots of template, so that its entries can be filled for other
+     * parameters without disturbing the template
+     */
+    LogGammaTable(LogGammaTable template) {
+        this.gamma = template.gamma;
+        this.table = template.table;
+        this.nTimePoints = template.nTimePoints;
+        this.nMasks = template.nMasks;
+        this.variableIndex = template.variableIndex;
+        this.slot = template.slot;
+        this.slotCount = template.slotCount;
+        maskPi = new double[nTimePoints][nMasks];
+        maskAlphaObs = new double[nTimePoints][nMasks];
+        values = new AtomicLongArray[nTimePoints];
+        derivatives = new AtomicLongArray[nTimePoints];
+        generation = new int[nTimePoints];
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            values[iTimePoint] = new AtomicLongArray(nMasks * slotCount[iTimePoint].length);
+            derivatives[iTimePoint] = new AtomicLongArray(nMasks * slotCount[iTimePoint].length);
+        }
+    }
+
+    /**
+     * Index of a variable site pattern (SiteTable row) among the patterns of the table, which orders the
+     * per-pattern state of Site
+     */
+    int patternIndex(int iSite) {
+        return variableIndex[iSite];
+    }
+
+    /**
+     * Start of the [strand][base] slots of a variable site (SiteTable row) and timepoint
+     */
+    int slotOffset(int iSite, int iTimePoint) {
+        return slotOffsetOfVariable(variableIndex[iSite], iTimePoint);
+    }
+
+    private int slotOffsetOfVariable(int iVariable, int iTimePoint) {
+        return (iVariable * nTimePoints + iTimePoint) * SiteTable.STRAND_BASES;
+    }
+
+    void setParams(double[][] piHap, double[] alphaParams) {
+        double newAlpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
+        double newAlphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
+        boolean alphaChanged = newAlpha0 != alpha0 || newAlphaE != alphaE;
+        alpha0 = newAlpha0;
+        alphaE = newAlphaE;
+        sumAlphaObs = alpha0 + 3.0 * alphaE;
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            update(iTimePoint, piHap[iTimePoint], alphaChanged);
+        }
+    }
+
+    /**
+     * Recomputes the subset parameters of one timepoint, clearing its entries if they changed
+     */
+    void setPiHap(int iTimePoint, double[] piHap) {
+        update(iTimePoint, piHap, false);
+    }
+
+    private void update(int iTimePoint, double[] piHap, boolean alphaChanged) {
+        double[] alphaObs = maskAlphaObs[iTimePoint];
+        double[] piMask = maskPi[iTimePoint];
+        for (int mask = 1; mask < nMasks; mask++) {
+            int iHaplo = Integer.numberOfTrailingZeros(mask);
+            piMask[mask] = piMask[mask & (mask - 1)] + piHap[iHaplo];
+        }
+        boolean changed = alphaChanged;
+        for (int mask = 0; mask < nMasks; mask++) {
+            double newAlphaObs = piMask[mask] * alpha0 + (1.0 - piMask[mask]) * alphaE;
+            changed |= newAlphaObs != alphaObs[mask];
+            alphaObs[mask] = newAlphaObs;
+        }
+        if (changed || generation[iTimePoint] == 0) {
+            clear(values[iTimePoint]);
+            clear(derivatives[iTimePoint]);
+            generation[iTimePoint]++;
+        }
+    }
+
+    private static void clear(AtomicLongArray entries) {
+        for (int index = 0; index < entries.length(); index++) {
+            entries.lazySet(index, UNSET);
+        }
+    }
+
+    /**
+     * Incremented whenever the entries of a timepoint change
+     */
+    int getGeneration(int iTimePoint) {
+        return generation[iTimePoint];
+    }
+
+    /**
+     * lgamma(alphaObs + n) - lgamma(alphaObs) for the haplotypes in mask and the count in slot iSlot
+     */
+    double get(int iTimePoint, int mask, int iSlot) {
+        AtomicLongArray tpValues = values[iTimePoint];
+        int index = mask * slotCount[iTimePoint].length + iSlot;
+        double value = Double.longBitsToDouble(tpValues.get(index));
+        if (value != value) {   // NaN, not yet computed
+            double alphaObs = maskAlphaObs[iTimePoint][mask];
+            value = gamma.logRisingFactorial(alphaObs, slotCount[iTimePoint][iSlot]);
+            tpValues.set(index, Double.doubleToRawLongBits(value));
+        }
+        return value;
+    }
+
+    /**
+     * Derivative of get(iTimePoint, mask, iSlot) with respect to the Dirichlet parameter of the subset
+     */
+    double getDerivative(int iTimePoint, int mask, int iSlot) {
+        AtomicLongArray tpDerivatives = derivatives[iTimePoint];
+        int index = mask * slotCount[iTimePoint].length + iSlot;
+        double derivative = Double.longBitsToDouble(tpDerivatives.get(index));
+        if (derivative != derivative) {   // NaN, not yet computed
+            derivative = gamma.digammaDifference(maskAlphaObs[iTimePoint][mask], slotCount[iTimePoint][iSlot]);
+            tpDerivatives.set(index, Double.doubleToRawLongBits(derivative));
+        }
+        return derivative;
+    }
+
+    /**
+     * Upper bound on Assignment.computeAssignmentLogLikelihood at a site and timepoint for any assignment:
+     * each term grows with its Dirichlet parameter, which for every subset lies between that of no haplotype
+     * (mask 0) and that of all of them
+     */
+    double assignmentBound(int slotOffset, int iTimePoint) {
+        double bound = 0.0;
+        for (int iRead = 0; iRead < SiteTable.STRAND_BASES; iRead++) {
+            int iSlot = slot.get(slotOffset + iRead);
+            if (iSlot >= 0) {
+                bound += Math.max(get(iTimePoint, 0, iSlot), get(iTimePoint, nMasks - 1, iSlot));
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Derivative of a subset's Dirichlet parameter with respect to the frequency of each haplotype in it
+     */
+    double getAlphaSlope() {
+        return alpha0 - alphaE;
+    }
+
+    /**
+     * Part of every assignment's log-likelihood that only depends on the strand totals of a site
+     */
+    double strandTerm(int iSite, int iTimePoint) {
+        int strandOffset = table.strandOffset(iSite, iTimePoint);
+        return -gamma.logRisingFactorial(sumAlphaObs, table.totStrand.get(strandOffset))
+                - gamma.logRisingFactorial(sumAlphaObs, table.totStrand.get(strandOffset + 1));
+    }
+}
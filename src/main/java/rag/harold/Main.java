@@ -8,11 +8,18 @@ import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.BOBYQAOptimizer;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Main {
     public static void main(String[] args) {
@@ -46,13 +53,24 @@ public class Main {
                 cmd.printVersionHelp(System.err);
             } else {
                 long startTime = System.currentTimeMillis();
+                if (options.coordinatorPort > 0) {   // a worker reports through its coordinator
+                    System.setOut(new PrintStream(new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+                    }));
+                }
                 System.out.printf("Main: arguments = %s\n", String.join(" ", args));
 
                 validateOptions(options);
 
                 // Setup
                 System.out.printf("Main: seed = %d\n", options.randomSeed);
-                GammaCalc gammaCalc = GammaCalc.get(options.gammaCache);
+                if (options.metricsOut != null && options.coordinatorPort == 0) {
+                    Metrics.enable();
+                }
+                long metricsStart = Metrics.start();
+                GammaCalc gammaCalc = GammaCalc.get(options.gammaCache, options.gammaCachePerThread, options.gammaMode);
 
                 // fraction of sites to use when optimising alpha parameters
                 Constants.USE_FRAC[0] = options.alpha_frac;
@@ -60,20 +78,76 @@ public class Main {
 
                 long fileSeed = options.randomSeed;
 
+                // per-site state on the heap, or mapped and reduced in windows when streaming
+                HeapLimit.set(options.maxHeap << 20);
+                StateStore store = options.stream
+                        ? StateStore.mapped(options.countFile[0].getAbsoluteFile().getParentFile().toPath(), options.window)
+                        : StateStore.heap();
+
+                // shared by clusters and by the site-level reductions within each cluster
+                final ForkJoinPool threadPool = new ForkJoinPool(options.threads);
+
+                if (options.coordinatorPort > 0) {   // a worker serves the shard it is sent until the coordinator is done
+                    ShardWorker.serve(options.coordinatorPort, options.shard, gammaCalc, threadPool, store, options.pruneMargin);
+                    threadPool.shutdown();
+                    return;
+                }
+
+                // workers start up while this process reads the data
+                Shards shards = options.workers > 0 ? Shards.launch(options.workers, args) : null;
+
+                int[] haplotypeRange = parseHaplotypeRange(options);
                 List<Cluster> clusters = new ArrayList<>();
                 for (int i = 0; i < options.countFile.length; i++) {
                     Cluster cluster = new Cluster(options.countFile[i],
-                            options.haplotypes[i],
+                            haplotypeRange != null ? haplotypeRange[0] : options.haplotypes[i],
                             options.initialAlphaParams,
-                            gammaCalc,
+                            Metrics.counting(gammaCalc),
                             fileSeed++,
+                            threadPool,
+                            options.cache,
+                            store,
                             options.verbose);
+                    cluster.setHapOptimiser(options.hapOptimiser);
+                    cluster.setPruneMargin(options.pruneMargin);
                     cluster.initialise();
                     clusters.add(cluster);
                 }
 
                 // Optimise
-                optimise(clusters, options);
+                try {
+                    if (shards != null) {
+                        shards.await(clusters);
+                    }
+                    if (haplotypeRange != null) {
+                        sweepHaplotypes(clusters, haplotypeRange, options, threadPool);
+                    } else if (options.starts > 1) {
+                        optimiseStarts(clusters, options, threadPool);
+                    } else {
+                        optimise(clusters, options, threadPool);
+                    }
+                } finally {
+                    if (shards != null) {
+                        shards.close();
+                    }
+                }
+                threadPool.shutdown();
+
+                if (gammaCalc instanceof GammaCache) {
+                    GammaCache gammaCache = (GammaCache) gammaCalc;
+                    long lookups = gammaCache.getHits() + gammaCache.getMisses();
+                    System.out.printf("Main: Gamma cache hits = %d, misses = %d, evictions = %d, hit rate = %.1f%%\n",
+                            gammaCache.getHits(), gammaCache.getMisses(), gammaCache.getEvictions(),
+                            lookups == 0 ? 0.0 : 100.0 * gammaCache.getHits() / lookups);
+                    Metrics.add(Metrics.Counter.GAMMA_CACHE_HITS, gammaCache.getHits());
+                    Metrics.add(Metrics.Counter.GAMMA_CACHE_MISSES, gammaCache.getMisses());
+                    Metrics.add(Metrics.Counter.GAMMA_CACHE_EVICTIONS, gammaCache.getEvictions());
+                }
+                if (Metrics.isEnabled()) {
+                    Metrics.phase("total", "Main", 0, 0, 0, metricsStart);
+                    Metrics.write(options.metricsOut.toPath());
+                    System.out.printf("Main: metrics written to %s\n", options.metricsOut);
+                }
 
                 long endTime = System.currentTimeMillis();
                 System.out.printf("Main: Execution time = %.2fs\n", (endTime - startTime) / 1000.0);
@@ -89,26 +163,277 @@ public class Main {
     }
 
     private void validateOptions(Options options) {
+        if (options.workers > 0 && (options.starts > 1 || options.haplotypeRange != null)) {
+            throw new RuntimeException("--workers cannot be combined with --starts or --haplotype-range.\n");
+        }
+        if (options.pruneMargin < 0.0) {
+            throw new RuntimeException("--prune-margin cannot be negative.\n");
+        }
+        if (options.resume && options.checkpoint == null) {
+            throw new RuntimeException("--resume needs the --checkpoint file to resume from.\n");
+        }
+        if (options.checkpoint != null && (options.workers > 0 || options.starts > 1 || options.haplotypeRange != null)) {
+            throw new RuntimeException("--checkpoint cannot be combined with --workers, --starts or --haplotype-range.\n");
+        }
+        if (options.haplotypeRange != null) {
+            if (options.starts > 1) {
+                throw new RuntimeException("--starts cannot be combined with --haplotype-range.\n");
+            }
+            return;
+        }
+        if (options.haplotypes == null) {
+            throw new RuntimeException("Give the number of haplotypes with -n or --haplotype-range.\n");
+        }
         if (options.countFile.length != options.haplotypes.length) {
             String msg = String.format("You have %d files but %d haplotype numbers.\n", options.countFile.length, options.haplotypes.length);
             throw new RuntimeException(msg);
         }
     }
 
-    private void optimise(List<Cluster> clusters, Options options) {
-        final ExecutorService threadPool = Executors.newFixedThreadPool(options.threads);
+    /**
+     * Lowest and highest number of haplotypes of --haplotype-range, or null if not given
+     */
+    private static int[] parseHaplotypeRange(Options options) {
+        if (options.haplotypeRange == null) {
+            return null;
+        }
+        Matcher matcher = Pattern.compile("(\\d+)\\.\\.(\\d+)").matcher(options.haplotypeRange.trim());
+        if (!matcher.matches()) {
+            throw new RuntimeException(String.format("Cannot read haplotype range '%s'; expected from..to, e.g. 2..5\n", options.haplotypeRange));
+        }
+        int[] range = {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+        if (range[0] < 2 || range[1] < range[0]) {
+            throw new RuntimeException(String.format("Haplotype range '%s' must run upwards from at least 2\n", options.haplotypeRange));
+        }
+        return range;
+    }
+
+    /**
+     * Fits each number of haplotypes in turn on the same loaded data. Each fit after the first starts from
+     * the previous one, with its most frequent haplotype split in two, and the alpha parameters it found.
+     * AIC = 2k - 2 lnL and BIC = k ln(n) - 2 lnL, with k the adjustable parameters and n the active sites,
+     * both summed over clusters.
+     */
+    private void sweepHaplotypes(List<Cluster> clusters, int[] range, Options options, ExecutorService threadPool) {
+        List<double[]> fits = new ArrayList<>();  // haplotypes, lnL, parameters, sites
+        List<Cluster> current = clusters;
+        double[] alphaParams = options.initialAlphaParams;
+        for (int nHaplo = range[0]; ; nHaplo++) {
+            Start start = new Start("Main [" + nHaplo + " haplotypes]", current, options, alphaParams);
+            while (!start.iterate(threadPool)) {
+                // optimise until convergence
+            }
+            double lnl = printResults(start);
+            int nParams = 0;
+            int nSites = 0;
+            for (Cluster cluster : current) {
+                nParams += cluster.getParameterCount();
+                nSites += cluster.getActiveSiteCount();
+            }
+            fits.add(new double[]{nHaplo, lnl, nParams, nSites});
+            if (nHaplo == range[1]) {
+                break;
+            }
+
+            List<Cluster> next = new ArrayList<>();
+            for (int i = 0; i < current.size(); i++) {
+                Cluster cluster = current.get(i).withHaplotypes(nHaplo + 1, options.randomSeed + i);
+                cluster.setHapOptimiser(options.hapOptimiser);
+                cluster.initialise(current.get(i));
+                next.add(cluster);
+            }
+            current = next;
+            alphaParams = start.currentAlphaParams;
+        }
+
+        System.out.println("\nMain: Haplotype sweep");
+        int bestAic = 0;
+        int bestBic = 0;
+        double[] aic = new double[fits.size()];
+        double[] bic = new double[fits.size()];
+        for (int iFit = 0; iFit < fits.size(); iFit++) {
+            double[] fit = fits.get(iFit);
+            aic[iFit] = 2.0 * fit[2] - 2.0 * fit[1];
+            bic[iFit] = fit[2] * Math.log(fit[3]) - 2.0 * fit[1];
+            bestAic = aic[iFit] < aic[bestAic] ? iFit : bestAic;
+            bestBic = bic[iFit] < bic[bestBic] ? iFit : bestBic;
+            System.out.printf("Main: haplotypes = %d, lnL = %.7f, parameters = %d, AIC = %.4f, BIC = %.4f\n",
+                    (int) fit[0], fit[1], (int) fit[2], aic[iFit], bic[iFit]);
+        }
+        System.out.printf("Main: lowest AIC with %d haplotypes, lowest BIC with %d haplotypes\n",
+                (int) fits.get(bestAic)[0], (int) fits.get(bestBic)[0]);
+    }
+
+    private void optimise(List<Cluster> clusters, Options options, ExecutorService threadPool) throws IOException {
+        Start start = new Start("Main", clusters, options);
+        boolean converged = options.checkpoint != null && start.checkpoint(options.checkpoint.toPath(), options.resume);
+        while (!converged) {
+            converged = start.iterate(threadPool);   // optimise until convergence
+        }
+        printResults(start);
+    }
+
+    /**
+     * Optimises options.starts copies of the clusters concurrently, each from its own random initial
+     * frequencies, in rounds of one outer iteration. After options.abandonAfter rounds, starts more than
+     * options.abandonMargin below the best total are abandoned. The rounds keep the decision independent of
+     * which start finishes first. The best start's results are reported along with the spread.
+     */
+    private void optimiseStarts(List<Cluster> clusters, Options options, ExecutorService threadPool) {
+        List<Start> starts = new ArrayList<>();
+        for (int iStart = 0; iStart < options.starts; iStart++) {
+            List<Cluster> startClusters = new ArrayList<>();
+            for (int i = 0; i < clusters.size(); i++) {
+                Cluster cluster = clusters.get(i);
+                if (iStart > 0) {   // the first start uses the loaded clusters and their seeds
+                    cluster = new Cluster(cluster, iStart, options.randomSeed + (long) iStart * clusters.size() + i);
+                    cluster.initialise();
+                }
+                startClusters.add(cluster);
+            }
+            starts.add(new Start("Main #" + iStart, startClusters, options));
+        }
+
+        List<Start> running = new ArrayList<>(starts);
+        for (int round = 1; !running.isEmpty(); round++) {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (Start start : running) {
+                futures.add(threadPool.submit(() -> start.iterate(threadPool)));
+            }
+            List<Boolean> converged = Main.getFutureResults(futures);
+            double best = Double.NEGATIVE_INFINITY;
+            for (Start start : starts) {
+                if (!start.abandoned) {
+                    best = Math.max(best, start.total);
+                }
+            }
+            List<Start> next = new ArrayList<>();
+            for (int iStart = 0; iStart < running.size(); iStart++) {
+                Start start = running.get(iStart);
+                if (converged.get(iStart)) {
+                    continue;
+                }
+                if (round >= options.abandonAfter && start.total < best - options.abandonMargin) {
+                    start.abandoned = true;
+                    System.out.printf("%s: abandoned after %d iterations; total = %.7f, best = %.7f\n",
+                            start.label, round, start.total, best);
+                } else {
+                    next.add(start);
+                }
+            }
+            running = next;
+        }
+
+        Start best = null;
+        for (Start start : starts) {
+            if (!start.abandoned && (best == null || start.total > best.total)) {
+                best = start;
+            }
+        }
+        System.out.println("\nMain: Starts");
+        double[] totals = new double[starts.size()];
+        for (int iStart = 0; iStart < starts.size(); iStart++) {
+            Start start = starts.get(iStart);
+            totals[iStart] = start.total;
+            System.out.printf("Main: start %d total = %.7f, iterations = %d%s%s\n", iStart, start.total, start.iteration,
+                    start.abandoned ? ", abandoned" : "", start == best ? ", best" : "");
+        }
+        Arrays.sort(totals);
+        System.out.printf("Main: start totals min = %.7f, median = %.7f, max = %.7f, range = %.7f\n",
+                totals[0], totals[totals.length / 2], totals[totals.length - 1], totals[totals.length - 1] - totals[0]);
+        printResults(best);
+    }
+
+    private double printResults(Start start) {
+        System.out.println("\nMain: Converged.");
+        System.out.println("\n\n========================= RESULTS =========================");
+
+        double finalLnl = 0;
+        for (Cluster cluster : start.clusters) {
+            System.out.println();
+            finalLnl += cluster.printResults();
+        }
 
-        ConvergenceChecker<PointValuePair> convergenceChecker = new SimpleValueChecker(-1, options.tol);
+        System.out.printf("\nMain: Final total likelihood = %.7f\n", finalLnl);
+        return finalLnl;
+    }
 
+    /**
+     * One start: clusters sharing alpha parameters, optimised in outer iterations that alternate haplotype
+     * frequencies and alpha
+     */
+    private class Start {
+        final String label;
+        final List<Cluster> clusters;
+        final Options options;
+        final double[] currentAlphaParams;
+        final ConvergenceChecker<PointValuePair> convergenceChecker;
         PointValuePair previous = new PointValuePair(null, Double.NEGATIVE_INFINITY);
         int iteration = 0;
+        double total = Double.NEGATIVE_INFINITY;
+        boolean abandoned = false;
+        Checkpoint checkpoint;  // written after every iteration, or null
+
+        Start(String label, List<Cluster> clusters, Options options) {
+            this(label, clusters, options, options.initialAlphaParams);
+        }
+
+        Start(String label, List<Cluster> clusters, Options options, double[] alphaParams) {
+            this.label = label;
+            this.clusters = clusters;
+            this.options = options;
+            this.currentAlphaParams = alphaParams.clone();
+            this.convergenceChecker = new SimpleValueChecker(-1, options.tol);
+        }
+
+        /**
+         * Writes the state to file after every round and iteration from now on, first carrying on from the
+         * state already there if resume. Returns whether the resumed run had converged.
+         */
+        boolean checkpoint(Path file, boolean resume) throws IOException {
+            Checkpoint loaded = resume ? Checkpoint.load(file) : null;
+            if (loaded == null) {
+                if (resume) {
+                    System.out.printf("%s: no checkpoint in %s, starting from the beginning\n", label, file);
+                }
+                checkpoint = new Checkpoint(file, clusters.size());
+                checkpoint.saveIteration(iteration, false, total, currentAlphaParams, states(false));
+            } else {
+                if (loaded.getClusterCount() != clusters.size()) {
+                    throw new IOException(String.format("Checkpoint %s has %d clusters, not %d",
+                            file, loaded.getClusterCount(), clusters.size()));
+                }
+                for (int i = 0; i < clusters.size(); i++) {
+                    clusters.get(i).restore(loaded.getCluster(i));
+                }
+                iteration = loaded.getIteration();
+                total = loaded.getTotal();
+                previous = new PointValuePair(null, total);
+                System.arraycopy(loaded.getAlphaParams(), 0, currentAlphaParams, 0, 2);
+                checkpoint = loaded;
+                System.out.printf("%s: resumed from %s after %d iterations; total = %.7f\n", label, file, iteration, total);
+            }
+            for (int i = 0; i < clusters.size(); i++) {
+                clusters.get(i).setCheckpoint(checkpoint, i);
+            }
+            return loaded != null && loaded.isConverged();
+        }
 
-        final double[] currentAlphaParams = options.initialAlphaParams;
+        private Checkpoint.ClusterState[] states(boolean withProbabilities) {
+            Checkpoint.ClusterState[] states = new Checkpoint.ClusterState[clusters.size()];
+            for (int i = 0; i < clusters.size(); i++) {
+                states[i] = clusters.get(i).getState(withProbabilities);
+            }
+            return states;
+        }
 
-        // optimise until convergence
-        while (true) {
+        /**
+         * One outer iteration, returning whether the start has converged
+         */
+        boolean iterate(ExecutorService threadPool) {
+            long iterationStart = Metrics.start();
             iteration++;
-            System.out.println("Main: Optimise haplotype frequencies");
+            System.out.printf("%s: Optimise haplotype frequencies\n", label);
             List<Future<Double>> futures = new ArrayList<>();
             for (final Cluster cluster : clusters) {
                 // optimise each cluster haplotypes independently (no synchronisation req)
@@ -116,13 +441,15 @@ public class Main {
                 futures.add(future);
             }
             List<Double> output = Main.getFutureResults(futures);
-            double total = output.stream().mapToDouble(Double::doubleValue).sum();
-            System.out.printf("Main: Optimised haplotype frequencies; total = %.7f\n", total);
+            total = output.stream().mapToDouble(Double::doubleValue).sum();
+            System.out.printf("%s: Optimised haplotype frequencies; total = %.7f\n", label, total);
 
             if (options.errorOptimiseIterations == 0 | iteration <= options.errorOptimiseIterations) {
                 // optimise the error alpha parameter
-                System.out.printf("Main: Optimise alpha; start = [%.3f, %.3f]\n", currentAlphaParams[0], currentAlphaParams[1]);
+                System.out.printf("%s: Optimise alpha; start = [%.3f, %.3f]\n", label, currentAlphaParams[0], currentAlphaParams[1]);
+                long alphaStart = Metrics.start();
                 double[] tempAlpha = optimiseAlpha(clusters, currentAlphaParams, threadPool);
+                Metrics.phase("alpha optimisation", label, 0, iteration, 0, alphaStart);
                 currentAlphaParams[0] = tempAlpha[0];
                 currentAlphaParams[1] = tempAlpha[1];
             }
@@ -137,29 +464,17 @@ public class Main {
             output = Main.getFutureResults(futures);
             total = output.stream().mapToDouble(Double::doubleValue).sum();
 
-            System.out.printf("Main: Optimised alpha; [%.3f, %.3f]; total = %.7f\n", currentAlphaParams[0], currentAlphaParams[1], total);
+            System.out.printf("%s: Optimised alpha; [%.3f, %.3f]; total = %.7f\n", label, currentAlphaParams[0], currentAlphaParams[1], total);
 
             PointValuePair current = new PointValuePair(null, total);
-
-            if (convergenceChecker.converged(iteration, previous, current)) {
-                break;
-            }
-
+            boolean converged = convergenceChecker.converged(iteration, previous, current);
             previous = current;
+            if (checkpoint != null) {
+                checkpoint.saveIteration(iteration, converged, total, currentAlphaParams, states(true));
+            }
+            Metrics.phase("iteration", label, 0, iteration, 0, iterationStart);
+            return converged;
         }
-
-        threadPool.shutdown();
-
-        System.out.println("\nMain: Converged.");
-        System.out.println("\n\n========================= RESULTS =========================");
-
-        double finalLnl = 0;
-        for (Cluster cluster : clusters) {
-            System.out.println();
-            finalLnl += cluster.printResults();
-        }
-
-        System.out.printf("\nMain: Final total likelihood = %.7f\n", finalLnl);
     }
 
     private double[] optimiseAlpha(List<Cluster> clusters, double[] startAlpha, ExecutorService threadPool) {
@@ -176,7 +491,9 @@ public class Main {
                 new ObjectiveFunction(clusterAlphaOptimise),
                 new SimpleBounds(lb_alpha, ub_alpha)};
 
-        return optimize.optimize(optimizationData).getPoint();
+        double[] optPoint = optimize.optimize(optimizationData).getPoint();
+        Metrics.add(Metrics.Counter.BOBYQA_ALPHA_EVALUATIONS, optimize.getEvaluations());
+        return optPoint;
     }
 
     private class OptimiseAlphaFunction implements MultivariateFunction {
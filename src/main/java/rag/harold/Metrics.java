@@ -0,0 +1,222 @@
+package rag.harold;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Phase timings and counters of a run, written by --metrics-out as JSON or, for a file ending in .csv, as
+ * CSV rows of kind, name, cluster, haplotypes, iteration, round and value.
+ * <p>
+ * Off unless enabled, when every call returns after reading one flag. Gamma function calls are only
+ * counted by the wrapper that counting() puts around the engine when enabled, so the likelihood kernels
+ * are the same either way.
+ */
+final class Metrics {
+    enum Counter {
+        FMIN_EVALUATIONS,             // Brent frequency optimisation of two haplotypes
+        BOBYQA_FREQUENCY_EVALUATIONS,
+        LBFGS_FREQUENCY_EVALUATIONS,
+        BOBYQA_ALPHA_EVALUATIONS,
+        LOG_GAMMA_CALLS,
+        LOG_RISING_FACTORIAL_CALLS,
+        DIGAMMA_DIFFERENCE_CALLS,
+        GAMMA_CACHE_HITS,
+        GAMMA_CACHE_MISSES,
+        GAMMA_CACHE_EVICTIONS,
+        PRUNED_ASSIGNMENT_TERMS       // assignment and timepoint terms skipped by --prune-margin
+    }
+
+    private static final class Phase {
+        final String name;
+        final String cluster;
+        final int haplotypes;
+        final int iteration;
+        final int round;
+        final double seconds;
+
+        Phase(String name, String cluster, int haplotypes, int iteration, int round, double seconds) {
+            this.name = name;
+            this.cluster = cluster;
+            this.haplotypes = haplotypes;
+            this.iteration = iteration;
+            this.round = round;
+            this.seconds = seconds;
+        }
+    }
+
+    private static volatile boolean enabled = false;
+    private static final ConcurrentLinkedQueue<Phase> phases = new ConcurrentLinkedQueue<>();
+    private static final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private static final ConcurrentLinkedQueue<Map<String, Object>> clusters = new ConcurrentLinkedQueue<>();
+
+    static {
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static void enable() {
+        enabled = true;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start time of a phase, for phase()
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records a phase begun at start; iteration and round are 0 where they do not apply
+     */
+    static void phase(String name, String cluster, int haplotypes, int iteration, int round, long start) {
+        if (enabled) {
+            phases.add(new Phase(name, cluster, haplotypes, iteration, round, (System.nanoTime() - start) / 1.0e9));
+        }
+    }
+
+    static void add(Counter counter, long count) {
+        if (enabled) {
+            counters.get(counter).add(count);
+        }
+    }
+
+    /**
+     * Records the sizes of a cluster, in the order given
+     */
+    static void cluster(String name, int haplotypes, Map<String, Long> counts) {
+        if (enabled) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("cluster", name);
+            record.put("haplotypes", haplotypes);
+            record.putAll(counts);
+            clusters.add(record);
+        }
+    }
+
+    /**
+     * gammaCalc, with its calls counted if enabled
+     */
+    static GammaCalc counting(GammaCalc gammaCalc) {
+        if (!enabled) {
+            return gammaCalc;
+        }
+        return new GammaCalc() {
+            @Override
+            public double logGamma(double x) {
+                counters.get(Counter.LOG_GAMMA_CALLS).increment();
+                return gammaCalc.logGamma(x);
+            }
+
+            @Override
+            public double logRisingFactorial(double a, int n) {
+                counters.get(Counter.LOG_RISING_FACTORIAL_CALLS).increment();
+                return gammaCalc.logRisingFactorial(a, n);
+            }
+
+            @Override
+            public double digammaDifference(double a, int n) {
+                counters.get(Counter.DIGAMMA_DIFFERENCE_CALLS).increment();
+                return gammaCalc.digammaDifference(a, n);
+            }
+        };
+    }
+
+    static void write(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            lines.add("kind,name,cluster,haplotypes,iteration,round,value");
+            for (Phase phase : phases) {
+                lines.add(String.format(Locale.ROOT, "phase,%s,%s,%d,%d,%d,%.6f", phase.name, csv(phase.cluster),
+                        phase.haplotypes, phase.iteration, phase.round, phase.seconds));
+            }
+            for (Map.Entry<Counter, LongAdder> counter : counters.entrySet()) {
+                lines.add(String.format("counter,%s,,,,,%d", counter.getKey().name().toLowerCase(Locale.ROOT),
+                        counter.getValue().sum()));
+            }
+            for (Map<String, Object> cluster : clusters) {
+                for (Map.Entry<String, Object> count : cluster.entrySet()) {
+                    if (!count.getKey().equals("cluster") && !count.getKey().equals("haplotypes")) {
+                        lines.add(String.format("cluster,%s,%s,%s,,,%s", count.getKey(), csv((String) cluster.get("cluster")),
+                                cluster.get("haplotypes"), count.getValue()));
+                    }
+                }
+            }
+        } else {
+            lines.add("{");
+            lines.add("  \"phases\": [");
+            List<String> items = new ArrayList<>();
+            for (Phase phase : phases) {
+                items.add(String.format(Locale.ROOT,
+                        "    {\"phase\": %s, \"cluster\": %s, \"haplotypes\": %d, \"iteration\": %d, \"round\": %d, \"seconds\": %.6f}",
+                        json(phase.name), json(phase.cluster), phase.haplotypes, phase.iteration, phase.round, phase.seconds));
+            }
+            addItems(lines, items);
+            lines.add("  ],");
+            lines.add("  \"counters\": {");
+            items.clear();
+            for (Map.Entry<Counter, LongAdder> counter : counters.entrySet()) {
+                items.add(String.format("    %s: %d", json(counter.getKey().name().toLowerCase(Locale.ROOT)), counter.getValue().sum()));
+            }
+            long lookups = counters.get(Counter.GAMMA_CACHE_HITS).sum() + counters.get(Counter.GAMMA_CACHE_MISSES).sum();
+            items.add(String.format(Locale.ROOT, "    \"gamma_cache_hit_rate\": %.6f",
+                    lookups == 0 ? 0.0 : counters.get(Counter.GAMMA_CACHE_HITS).sum() / (double) lookups));
+            addItems(lines, items);
+            lines.add("  },");
+            lines.add("  \"clusters\": [");
+            items.clear();
+            for (Map<String, Object> cluster : clusters) {
+                List<String> fields = new ArrayList<>();
+                for (Map.Entry<String, Object> field : cluster.entrySet()) {
+                    fields.add(json(field.getKey()) + ": "
+                            + (field.getValue() instanceof String ? json((String) field.getValue()) : field.getValue()));
+                }
+                items.add("    {" + String.join(", ", fields) + "}");
+            }
+            addItems(lines, items);
+            lines.add("  ]");
+            lines.add("}");
+        }
+        Files.write(file, lines);
+    }
+
+    private static void addItems(List<String> lines, List<String> items) {
+        for (int i = 0; i < items.size(); i++) {
+            lines.add(items.get(i) + (i < items.size() - 1 ? "," : ""));
+        }
+    }
+
+    private static String json(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String csv(String value) {
+        return value.contains(",") || value.contains("\"") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+}
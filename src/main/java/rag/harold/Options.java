@@ -27,15 +27,39 @@ public class Options {
     @Option(names = {"-c", "--count-file"}, arity = "1..*", required = true, description = "File containing list of count files")
     File[] countFile;
 
-    @Option(names = {"-n", "--haplotypes"}, arity = "1..*", required = true, description = "Number of haplotypes")
+    @Option(names = {"-n", "--haplotypes"}, arity = "1..*", description = "Number of haplotypes")
     int[] haplotypes;
 
-    @Option(names = {"-g", "--gamma-cache"}, description = "Number of Gamma function calculations to cache")
+    @Option(names = {"--haplotype-range"}, description = "Fit every number of haplotypes from..to (e.g. 2..5) instead of -n, warm-starting each from the previous fit, and report AIC and BIC")
+    String haplotypeRange;
+
+    @Option(names = {"-g", "--gamma-cache"}, description = "Number of Gamma function calculations to cache, rounded down to a multiple of 8")
     int gammaCache = 0;
 
+    @Option(names = {"--gamma-cache-per-thread"}, description = "Give each thread its own Gamma function cache of the size above, rather than sharing one")
+    boolean gammaCachePerThread = false;
+
+    @Option(names = {"--gamma-mode"}, description = "Gamma function evaluation: COMMONS (Commons Math, the default), or the Stirling series of ACCURATE (~1e-15) or FAST (~1e-9), which are faster per call but may take the optimisers along a different path")
+    GammaCalc.Mode gammaMode = GammaCalc.Mode.COMMONS;
+
+    @Option(names = {"--hap-optimiser"}, description = "Haplotype frequency optimiser for more than two haplotypes: BOBYQA (derivative-free) or LBFGS (bounded quasi-Newton on analytic gradients)")
+    Cluster.HapOptimiser hapOptimiser = Cluster.HapOptimiser.BOBYQA;
+
+    @Option(names = {"--prune-margin"}, description = "Stop evaluating a site's assignment in the E-step once it is certain to be this far below the best in log-likelihood (0 evaluates all); 30 keeps the error below 1e-10 per site up to five haplotypes")
+    double pruneMargin = 0.0;
+
     @Option(names = {"-s", "--seed"}, description = "Seed for random number generator")
     long randomSeed = System.currentTimeMillis();
 
+    @Option(names = {"--starts"}, description = "Number of random initialisations optimised concurrently on the same data; the best is reported")
+    int starts = 1;
+
+    @Option(names = {"--abandon-after"}, description = "With --starts, outer iterations before starts may be abandoned")
+    int abandonAfter = 3;
+
+    @Option(names = {"--abandon-margin"}, description = "With --starts, abandon starts whose log-likelihood is this far below the best")
+    double abandonMargin = 10.0;
+
     @Option(names = {"--threads"}, description = "Number of processors for multi-threaded operation")
     int threads = 1;
 
@@ -48,6 +72,36 @@ public class Options {
     @Option(names = {"--error-opt-iter"}, arity = "1", description = "Limit error parameter optimisation to n rounds (0 means no limit)")
     int errorOptimiseIterations = 0;
 
+    @Option(names = {"--cache"}, description = "Keep parsed reads in <count file>.cache and reuse them while the count files are unchanged; the cache is limited to 2 GB, about 50 million sites times timepoints")
+    boolean cache = false;
+
+    @Option(names = {"--stream"}, description = "Keep reads and per-assignment state in memory-mapped files next to the count file, and process sites in fixed windows; the heap still holds a few ints and bytes per site for positions, base masks and site patterns (implies --cache, so is limited to about 50 million sites times timepoints)")
+    boolean stream = false;
+
+    @Option(names = {"--window"}, description = "With --stream, number of site patterns per window")
+    int window = 1 << 16;
+
+    @Option(names = {"--max-heap"}, description = "Stop if the live heap exceeds this many MB, checked after each --stream window (0 means no limit)")
+    long maxHeap = 0;
+
+    @Option(names = {"--workers"}, description = "Split the sites of every count file between this many worker processes on this machine, started by the run and reached over local sockets; results are identical to one process")
+    int workers = 0;
+
+    @Option(names = {"--checkpoint"}, description = "Write the optimisation state to this file after every round and outer iteration")
+    File checkpoint;
+
+    @Option(names = {"--resume"}, description = "Carry on from the --checkpoint file of an interrupted run, if there is one")
+    boolean resume = false;
+
+    @Option(names = {"--metrics-out"}, description = "Write phase timings, optimiser evaluations, Gamma function calls and cluster sizes to this file, as CSV if it ends in .csv and JSON otherwise")
+    File metricsOut;
+
+    @Option(names = {"--coordinator-port"}, hidden = true, description = "Run as a worker of the coordinator listening on this port")
+    int coordinatorPort = 0;
+
+    @Option(names = {"--shard"}, hidden = true, description = "Shard served by this worker")
+    int shard = 0;
+
     @Option(names = {"--tol"}, description = "Optimisation tolerance")
     double tol = Constants.DEFAULT_TOL;
 
@@ -0,0 +1,209 @@
+package rag.harold;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads bam-readcount output into primitive arrays.
+ * <p>
+ * The file is memory-mapped and scanned byte by byte: the position (field 2) and the plus/minus strand
+ * counts (subfields 6 and 7) of the A, C, G and T columns (fields 6 to 9) are accumulated as integers
+ * straight from the mapped bytes, without creating a String per line or per field.
+ */
+class ReadCountParser {
+    private static final long MAP_SIZE = 1L << 30;  // Largest region mapped at once
+
+    /**
+     * Positions and strand counts from one file, rows in file order until sorted
+     */
+    static class Block {
+        int size = 0;
+        int[] position = new int[1024];
+        int[] strandReads = new int[1024 * SiteTable.STRAND_BASES];  // [row][strand][base]
+        int[] fileRow = null;  // [row] index of the row in file order once sorted, or null while in file order
+
+        int addRow(int iPosition) {
+            if (size == position.length) {
+                position = Arrays.copyOf(position, 2 * size);
+                strandReads = Arrays.copyOf(strandReads, 2 * size * SiteTable.STRAND_BASES);
+            }
+            position[size] = iPosition;
+            return size++;
+        }
+
+        /**
+         * Index of the given row in file order
+         */
+        int fileRow(int iRow) {
+            return fileRow == null ? iRow : fileRow[iRow];
+        }
+
+        /**
+         * Reorders rows by position, keeping file order for repeated positions
+         */
+        Block sort() {
+            boolean sorted = true;
+            for (int iRow = 1; iRow < size && sorted; iRow++) {
+                sorted = position[iRow - 1] <= position[iRow];
+            }
+            if (sorted) {
+                return this;
+            }
+            long[] keys = new long[size];  // position in the high word, row in the low word
+            for (int iRow = 0; iRow < size; iRow++) {
+                keys[iRow] = ((long) position[iRow] << 32) | iRow;
+            }
+            Arrays.sort(keys);
+            int[] sortedPosition = new int[position.length];
+            int[] sortedReads = new int[strandReads.length];
+            fileRow = new int[size];
+            for (int iRow = 0; iRow < size; iRow++) {
+                int from = (int) keys[iRow];
+                fileRow[iRow] = from;
+                sortedPosition[iRow] = position[from];
+                System.arraycopy(strandReads, from * SiteTable.STRAND_BASES, sortedReads, iRow * SiteTable.STRAND_BASES,
+                        SiteTable.STRAND_BASES);
+            }
+            position = sortedPosition;
+            strandReads = sortedReads;
+            return this;
+        }
+    }
+
+    static Block parse(Path path) throws IOException {
+        Block block = new Block();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long length = Math.min(MAP_SIZE, size - start);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                int end = (int) length;
+                if (start + length < size) {   // stop at the last complete line of this region
+                    while (end > 0 && buffer.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException(path + ": line longer than " + MAP_SIZE + " bytes");
+                    }
+                }
+                parseLines(buffer, end, block, path);
+                start += end;
+            }
+        }
+        return block;
+    }
+
+    private static void parseLines(ByteBuffer buffer, int limit, Block block, Path path) throws IOException {
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int end = lineEnd;
+            if (end > lineStart && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            if (end > lineStart) {
+                parseLine(buffer, lineStart, end, block, path);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private static void parseLine(ByteBuffer buffer, int start, int end, Block block, Path path) throws IOException {
+        int p = nextField(buffer, start, end);  // to position
+        int iPosition = 0;
+        int nDigits = 0;
+        for (; p < end && buffer.get(p) != '\t'; p++) {
+            int digit = buffer.get(p) - '0';
+            if (digit < 0 || digit > 9) {   // header line
+                return;
+            }
+            iPosition = 10 * iPosition + digit;
+            nDigits++;
+        }
+        if (nDigits == 0) {
+            return;
+        }
+        p = nextField(buffer, p, end);     // to reference base
+        p = nextField(buffer, p, end);     // to depth
+        p = nextField(buffer, p, end);     // to '=' column
+        p = nextField(buffer, p, end);     // to first base column
+
+        int row = block.addRow(iPosition);
+        int offset = row * SiteTable.STRAND_BASES;
+        for (int iBase = 0; iBase < 4; iBase++) {
+            if (p >= end) {
+                throw new IOException(path + ": missing base columns at position " + iPosition);
+            }
+            int q = p;
+            for (int iField = 0; iField < 5; iField++) {   // strand counts are the sixth and seventh subfields
+                while (q < end && buffer.get(q) != ':') {
+                    q++;
+                }
+                q++;
+            }
+            for (int iStrand = 0; iStrand < 2; iStrand++) {
+                int count = 0;
+                int nCountDigits = 0;
+                for (; q < end; q++) {
+                    int digit = buffer.get(q) - '0';
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+                    count = 10 * count + digit;
+                    nCountDigits++;
+                }
+                if (nCountDigits == 0) {
+                    throw new IOException(path + ": malformed base column at position " + iPosition);
+                }
+                block.strandReads[offset + 4 * iStrand + iBase] = count;
+                q++;
+            }
+            p = nextField(buffer, p, end);
+        }
+    }
+
+    /**
+     * Index just past the next tab at or after p, or end if there is none
+     */
+    private static int nextField(ByteBuffer buffer, int p, int end) {
+        while (p < end && buffer.get(p) != '\t') {
+            p++;
+        }
+        return Math.min(p + 1, end);
+    }
+
+    /**
+     * Reference implementation using readLine() and split(), kept for benchmarking the parser above
+     */
+    static Block parseLines(Path path) throws IOException {
+        Block block = new Block();
+        try (BufferedReader buff = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = buff.readLine()) != null) {
+                if (line.contains("Position")) {
+                    continue;
+                }
+                String[] words = line.split("\\t");
+                int row = block.addRow(Integer.parseInt(words[1]));
+                for (int iBase = 0; iBase < 4; iBase++) {
+                    String[] fields = words[5 + iBase].split(":");
+                    for (int iStrand = 0; iStrand < 2; iStrand++) {
+                        block.strandReads[row * SiteTable.STRAND_BASES + 4 * iStrand + iBase] = Integer.parseInt(fields[5 + iStrand]);
+                    }
+                }
+            }
+        }
+        return block;
+    }
+}
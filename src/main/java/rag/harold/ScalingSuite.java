@@ -0,0 +1,216 @@
+package rag.harold;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * End-to-end scaling runs on {@link SyntheticData} datasets: from a base configuration, varies one of
+ * threads, sites, timepoints and haplotypes at a time, runs Main on each in a fresh JVM and reports the wall
+ * time, peak heap and final log-likelihood, as a table and optionally as CSV.
+ * <p>
+ * Datasets are written once to the work directory and reused, and the same seed is used throughout, so a
+ * suite can be repeated on another machine to size jobs there. Peak heap is the sum of the peak use of each
+ * heap memory pool of the run's JVM, so it includes garbage not yet collected.
+ * <p>
+ * Run using: java -cp harold-1.0.jar rag.harold.ScalingSuite -w &lt;work directory&gt; [options]
+ */
+@Command(name = "java -cp harold-1.0.jar rag.harold.ScalingSuite",
+        description = "Runs HaROLD on synthetic datasets of increasing size and reports time, peak heap and log-likelihood",
+        sortOptions = false)
+public class ScalingSuite {
+    private static final String LIKELIHOOD = "Main: Final total likelihood = ";
+    private static final String PEAK_HEAP = "ScalingSuite: peak heap = ";
+
+    @Option(names = {"-w", "--work-dir"}, required = true, description = "Directory for the generated datasets")
+    File workDir;
+
+    @Option(names = {"--threads"}, description = "Threads of the base configuration")
+    int threads = 1;
+
+    @Option(names = {"--sites"}, description = "Genome length of the base configuration")
+    int sites = 10000;
+
+    @Option(names = {"--timepoints"}, description = "Timepoints of the base configuration")
+    int timePoints = 4;
+
+    @Option(names = {"--haplotypes"}, description = "Haplotypes of the base configuration, generated and fitted")
+    int haplotypes = 3;
+
+    @Option(names = {"--depth"}, description = "Mean read depth of the generated datasets")
+    double depth = 500.0;
+
+    @Option(names = {"--vary-threads"}, split = ",", description = "Numbers of threads to run the base dataset with")
+    int[] varyThreads = {1, 2, 4};
+
+    @Option(names = {"--vary-sites"}, split = ",", description = "Genome lengths to run")
+    int[] varySites = {5000, 10000, 20000};
+
+    @Option(names = {"--vary-timepoints"}, split = ",", description = "Numbers of timepoints to run")
+    int[] varyTimePoints = {2, 4, 8};
+
+    @Option(names = {"--vary-haplotypes"}, split = ",", description = "Numbers of haplotypes to run")
+    int[] varyHaplotypes = {2, 3, 4};
+
+    @Option(names = {"--main-args"}, description = "Further arguments for every run of Main, e.g. \"--gamma-mode FAST\"")
+    String mainArgs = "";
+
+    @Option(names = {"--jvm-args"}, description = "Arguments for the JVM of every run, e.g. \"-Xmx4g\"")
+    String jvmArgs = "";
+
+    @Option(names = {"--csv"}, description = "Also write the results to this CSV file")
+    File csv;
+
+    @Option(names = {"-s", "--seed"}, description = "Seed of the datasets and the runs")
+    long seed = 1;
+
+    @Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help")
+    boolean helpRequested;
+
+    public static void main(String[] args) throws Exception {
+        ScalingSuite suite = new ScalingSuite();
+        CommandLine cmd = new CommandLine(suite);
+        try {
+            cmd.parse(args);
+        } catch (CommandLine.ParameterException ex) {
+            System.err.println(ex.getMessage());
+            cmd.usage(System.err);
+            System.exit(1);
+        }
+        if (cmd.isUsageHelpRequested()) {
+            cmd.usage(System.err);
+            return;
+        }
+        suite.run();
+    }
+
+    /**
+     * Runs Main with the given arguments and then reports the peak heap; the suite starts one per run
+     */
+    public static class Measure {
+        public static void main(String[] args) {
+            Main.main(args);
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.out.println(PEAK_HEAP + peak);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        List<String> results = new ArrayList<>();
+        results.add("varied,threads,sites,timepoints,haplotypes,seconds,peak_heap_mb,log_likelihood");
+        for (int value : varyThreads) {
+            results.add(runOne("threads", value, sites, timePoints, haplotypes));
+        }
+        for (int value : varySites) {
+            results.add(runOne("sites", threads, value, timePoints, haplotypes));
+        }
+        for (int value : varyTimePoints) {
+            results.add(runOne("timepoints", threads, sites, value, haplotypes));
+        }
+        for (int value : varyHaplotypes) {
+            results.add(runOne("haplotypes", threads, sites, timePoints, value));
+        }
+
+        System.out.println("\nScalingSuite: results");
+        System.out.printf("%-11s %7s %9s %10s %10s %9s %13s %20s\n",
+                "varied", "threads", "sites", "timepoints", "haplotypes", "seconds", "peak heap MB", "log-likelihood");
+        for (String result : results.subList(1, results.size())) {
+            String[] fields = result.split(",");
+            System.out.printf("%-11s %7s %9s %10s %10s %9s %13s %20s\n", (Object[]) fields);
+        }
+        if (csv != null) {
+            Files.write(csv.toPath(), results);
+            System.out.printf("ScalingSuite: results written to %s\n", csv);
+        }
+    }
+
+    private String runOne(String varied, int nThreads, int nSites, int nTimePoints, int nHaplo)
+            throws IOException, InterruptedException {
+        File countFile = dataset(nSites, nTimePoints, nHaplo);
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(split(jvmArgs));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Measure.class.getName());
+        command.addAll(Arrays.asList("-c", countFile.getPath(), "-n", String.valueOf(nHaplo),
+                "-s", String.valueOf(seed), "--threads", String.valueOf(nThreads)));
+        command.addAll(split(mainArgs));
+        System.out.printf("ScalingSuite: %s = %d; threads = %d, sites = %d, timepoints = %d, haplotypes = %d\n",
+                varied, varied.equals("threads") ? nThreads : varied.equals("sites") ? nSites
+                        : varied.equals("timepoints") ? nTimePoints : nHaplo,
+                nThreads, nSites, nTimePoints, nHaplo);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        double logLikelihood = Double.NaN;
+        long peakHeap = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(LIKELIHOOD)) {
+                    logLikelihood = Double.parseDouble(line.substring(LIKELIHOOD.length()).trim());
+                } else if (line.startsWith(PEAK_HEAP)) {
+                    peakHeap = Long.parseLong(line.substring(PEAK_HEAP.length()).trim());
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+        if (exitCode != 0 || peakHeap < 0) {
+            throw new IOException(String.format("Run on %s failed with exit code %d", countFile, exitCode));
+        }
+        System.out.printf("ScalingSuite: %.2f s, peak heap = %.1f MB, lnL = %.7f\n", seconds, peakHeap / 1048576.0, logLikelihood);
+        return String.format("%s,%d,%d,%d,%d,%.2f,%.1f,%.7f", varied, nThreads, nSites, nTimePoints, nHaplo,
+                seconds, peakHeap / 1048576.0, logLikelihood);
+    }
+
+    /**
+     * Count-file list of the dataset with these dimensions, generated on first use
+     */
+    private File dataset(int nSites, int nTimePoints, int nHaplo) throws IOException {
+        Path directory = workDir.toPath().resolve(String.format("sites%d_tp%d_h%d_depth%.0f_seed%d",
+                nSites, nTimePoints, nHaplo, depth, seed));
+        File list = directory.resolve("filelist").toFile();
+        if (list.isFile()) {
+            return list;
+        }
+        SyntheticData data = new SyntheticData();
+        data.out = directory.toFile();
+        data.sites = nSites;
+        data.timePoints = nTimePoints;
+        data.haplotypes = nHaplo;
+        data.depth = depth;
+        data.seed = seed;
+        return data.write();
+    }
+
+    private static List<String> split(String args) {
+        List<String> words = new ArrayList<>();
+        for (String word : args.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
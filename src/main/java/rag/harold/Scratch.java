@@ -0,0 +1,57 @@
+package rag.harold;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread working arrays of the likelihood kernels, so that evaluating a site allocates nothing once a
+ * thread's arrays have grown to the largest site it has seen.
+ * <p>
+ * A kernel takes the arrays at entry and must not call another kernel that uses the same array; contents
+ * are left over from the previous use, so kernels write every entry they later read.
+ */
+final class Scratch {
+    private static final ThreadLocal<Scratch> THREAD = ThreadLocal.withInitial(Scratch::new);
+
+    private double[] assign = new double[64];      // [local assignment] per-assignment values of one site
+    private double[] haplotypes = new double[8];   // [haplotype] gradient of one site and timepoint
+    private double[] timePoints = new double[8];   // [tp] per-timepoint values of one site
+    final double[] bases = new double[4];          // [base] per-base values of one assignment
+
+    private Scratch() {
+    }
+
+    static Scratch get() {
+        return THREAD.get();
+    }
+
+    /**
+     * At least length entries, in any state
+     */
+    double[] assign(int length) {
+        if (assign.length < length) {
+            assign = new double[Math.max(length, 2 * assign.length)];
+        }
+        return assign;
+    }
+
+    /**
+     * At least length entries, in any state
+     */
+    double[] timePoints(int length) {
+        if (timePoints.length < length) {
+            timePoints = new double[length];
+        }
+        return timePoints;
+    }
+
+    /**
+     * At least length entries, the first length of them zero
+     */
+    double[] haplotypes(int length) {
+        if (haplotypes.length < length) {
+            haplotypes = new double[length];
+        }
+        Arrays.fill(haplotypes, 0, length, 0.0);
+        return haplotypes;
+    }
+}
@@ -0,0 +1,157 @@
+package rag.harold;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker side of a sharded run, see {@link Shards}: holds the sites of one shard of every cluster, as sent
+ * by the coordinator, and serves their sums until the coordinator closes its connection.
+ */
+final class ShardWorker {
+    private final List<DataSet> dataSets = new ArrayList<>();
+    private final int shard;
+    // Requests on different connections are ordered by the coordinator, which waits for each reply before
+    // sending anything that depends on it. Bumping this counter before a reply is sent, and reading it
+    // before a request is served, carries the state changes of one request over to the thread serving the
+    // next
+    private final AtomicLong served = new AtomicLong();
+
+    private ShardWorker(int shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Connects to the coordinator on coordinatorPort as shard number shard, reads the sites of its shard of
+     * every cluster and serves requests until the coordinator closes the connection
+     */
+    static void serve(int coordinatorPort, int shard, GammaCalc gammaCalc, ForkJoinPool threadPool, StateStore store,
+                      double pruneMargin) throws IOException {
+        ShardWorker worker = new ShardWorker(shard);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             Socket control = new Socket(InetAddress.getLoopbackAddress(), coordinatorPort)) {
+            Shards.Connection connection = new Shards.Connection(control);
+            connection.out.writeInt(shard);
+            connection.out.writeInt(server.getLocalPort());
+            connection.out.flush();
+            int nClusters = connection.in.readInt();
+            for (int iCluster = 0; iCluster < nClusters; iCluster++) {
+                Cluster cluster = new Cluster("shard " + shard + " cluster " + iCluster, connection.in, gammaCalc,
+                        threadPool, store);
+                cluster.setPruneMargin(pruneMargin);
+                worker.dataSets.add(cluster.getDataSet());
+            }
+
+            Thread acceptor = new Thread(() -> worker.accept(server), "shard-" + shard);
+            acceptor.setDaemon(true);
+            acceptor.start();
+            connection.out.writeByte(Shards.OK);
+            connection.out.flush();
+            while (connection.in.read() >= 0) {
+                // the coordinator sends nothing more here, and closes the connection at the end of the run
+            }
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Shards.Connection connection = new Shards.Connection(server.accept());
+                Thread thread = new Thread(() -> serve(connection), "shard-" + shard + "-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of one connection in turn
+     */
+    private void serve(Shards.Connection connection) {
+        try {
+            DataInputStream in = connection.in;
+            DataOutputStream out = connection.out;
+            int operation;
+            while ((operation = in.read()) >= 0) {
+                served.get();
+                try {
+                    DataSet dataSet = dataSets.get(in.readInt());
+                    switch (operation) {
+                        case Shards.SET_PARAMS: {
+                            double[][] hapParams = new double[in.readInt()][];
+                            for (int iTimePoint = 0; iTimePoint < hapParams.length; iTimePoint++) {
+                                hapParams[iTimePoint] = Shards.readDoubles(in);
+                            }
+                            dataSet.updateAllParams(hapParams, Shards.readDoubles(in));
+                            replyOk(out);
+                            break;
+                        }
+                        case Shards.SET_ALPHA:
+                            dataSet.updateAlphaParams(Shards.readDoubles(in));
+                            replyOk(out);
+                            break;
+                        case Shards.SET_TIME_POINT: {
+                            int iTimePoint = in.readInt();
+                            dataSet.updateSingleHapParams(iTimePoint, Shards.readDoubles(in));
+                            replyOk(out);
+                            break;
+                        }
+                        case Shards.SET_PRIORS:
+                            dataSet.setPriors(Shards.readDoubles(in));
+                            replyOk(out);
+                            break;
+                        case Shards.SUM: {
+                            int reduction = in.readInt();
+                            Shards.Term term = Shards.Term.values()[in.readInt()];
+                            double[] sums = dataSet.shardSum(reduction, term, in.readInt());
+                            replyOk(out);
+                            Shards.writeDoubles(out, sums);
+                            break;
+                        }
+                        case Shards.VECTOR_SUM: {
+                            Shards.Term term = Shards.Term.values()[in.readInt()];
+                            double[][] sums = dataSet.shardVectorSum(term, in.readInt());
+                            replyOk(out);
+                            out.writeInt(sums.length);
+                            for (double[] sum : sums) {
+                                Shards.writeDoubles(out, sum);
+                            }
+                            break;
+                        }
+                        default:
+                            throw new IOException("Unknown request " + operation);
+                    }
+                } catch (RuntimeException e) {
+                    // the request's arguments may be left unread, and the coordinator drops the connection
+                    served.incrementAndGet();
+                    out.writeByte(Shards.FAILED);
+                    out.writeUTF(String.valueOf(e));
+                    out.flush();
+                    return;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the coordinator has gone
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Publishes the state changes of the request to the thread serving the next one, then reports success
+     */
+    private void replyOk(DataOutputStream out) throws IOException {
+        served.incrementAndGet();
+        out.writeByte(Shards.OK);
+    }
+}
@@ -0,0 +1,359 @@
+package rag.harold;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinator side of a sharded run: worker processes on this machine that hold the sites of every cluster
+ * and evaluate the site sums, while the optimisers stay in the coordinator.
+ * <p>
+ * The coordinator reads and splits the data, then sends worker k of n the chunks from k / n to (k + 1) / n
+ * of every reduction: the positions and reads of their sites and the chunk boundaries. Each worker indexes
+ * only those sites, so the chunk sums it returns are exactly those a single process computes, and the
+ * coordinator combines them in the same tree: results are bit-identical to a run without workers. The
+ * coordinator keeps its sites for the results but drops its caches of site terms. Every change of parameters is sent to
+ * all workers before the sums that depend on it are requested, and each request waits for every reply, so
+ * the workers always see the coordinator's state. Requests from different threads of the coordinator use
+ * different connections and are served concurrently, as they would be by one process.
+ * <p>
+ * Protocol, over loopback sockets with big-endian data streams: a worker connects once to the coordinator
+ * and sends its shard number and the port it listens on, is sent its sites and replies once it has indexed
+ * them; the coordinator keeps this connection open for the length of the run and closing it stops the
+ * worker. Requests are an
+ * operation byte, the cluster number and the operation's arguments; replies are a status byte, then either
+ * the result or an error message.
+ */
+class Shards implements Closeable {
+    /**
+     * Site terms the workers sum
+     */
+    enum Term {ASSIGN, SITE, TIME_POINT, ESTIMATES, GRADIENT}
+
+    static final byte SET_PARAMS = 1;
+    static final byte SET_ALPHA = 2;
+    static final byte SET_TIME_POINT = 3;
+    static final byte SET_PRIORS = 4;
+    static final byte SUM = 5;
+    static final byte VECTOR_SUM = 6;
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    private static final int ACCEPT_TIMEOUT = 1000;  // ms between checks that the workers are still running
+
+    private final int nWorkers;
+    private final ServerSocket server;
+    private final List<Process> processes;
+    private final Connection[] control;  // [worker] connection held open for the length of the run
+    private final int[] ports;  // [worker] port the worker serves requests on
+    private final List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<>();  // [worker] free connections
+
+    private Shards(ServerSocket server, List<Process> processes) {
+        this.nWorkers = processes.size();
+        this.server = server;
+        this.processes = processes;
+        this.control = new Connection[nWorkers];
+        this.ports = new int[nWorkers];
+        for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+            idle.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Starts nWorkers workers running with args, the coordinator's command line, so they start up while the
+     * coordinator reads the data
+     */
+    static Shards launch(int nWorkers, String[] args) throws IOException {
+        ServerSocket server = new ServerSocket(0, nWorkers, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(ACCEPT_TIMEOUT);
+        List<Process> processes = new ArrayList<>();
+        for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            command.addAll(Arrays.asList(args));
+            command.addAll(Arrays.asList("--coordinator-port", Integer.toString(server.getLocalPort()),
+                    "--shard", Integer.toString(iWorker)));
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        return new Shards(server, processes);
+    }
+
+    /**
+     * Waits for every worker to connect, sends each one the sites of its shard of every cluster, waits for
+     * the workers to index them and hands the site sums of the clusters to the workers
+     */
+    void await(List<Cluster> clusters) throws IOException {
+        for (int nConnected = 0; nConnected < nWorkers; ) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketTimeoutException e) {
+                for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+                    if (!processes.get(iWorker).isAlive()) {
+                        throw new IllegalStateException(String.format("Worker %d exited with status %d before connecting",
+                                iWorker, processes.get(iWorker).exitValue()));
+                    }
+                }
+                continue;
+            }
+            Connection connection = new Connection(socket);
+            int shard = connection.in.readInt();
+            ports[shard] = connection.in.readInt();
+            control[shard] = connection;
+            connection.out.writeInt(clusters.size());
+            for (Cluster cluster : clusters) {
+                cluster.writeShard(connection.out, shard, nWorkers);
+            }
+            connection.out.flush();
+            nConnected++;
+        }
+        for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+            if (control[iWorker].in.readByte() != OK) {
+                throw new IllegalStateException(String.format("Worker %d failed to index its sites", iWorker));
+            }
+        }
+        for (int iCluster = 0; iCluster < clusters.size(); iCluster++) {
+            clusters.get(iCluster).setShards(this, iCluster);
+        }
+        System.out.printf("Shards: %d workers connected\n", nWorkers);
+    }
+
+    void setParams(int iCluster, double[][] hapParams, double[] alphaParams) {
+        broadcast(out -> {
+            out.writeByte(SET_PARAMS);
+            out.writeInt(iCluster);
+            out.writeInt(hapParams.length);
+            for (double[] timePointParams : hapParams) {
+                writeDoubles(out, timePointParams);
+            }
+            writeDoubles(out, alphaParams);
+        }, in -> null);
+    }
+
+    void setAlpha(int iCluster, double[] alphaParams) {
+        broadcast(out -> {
+            out.writeByte(SET_ALPHA);
+            out.writeInt(iCluster);
+            writeDoubles(out, alphaParams);
+        }, in -> null);
+    }
+
+    void setTimePoint(int iCluster, int iTimePoint, double[] hapParams) {
+        broadcast(out -> {
+            out.writeByte(SET_TIME_POINT);
+            out.writeInt(iCluster);
+            out.writeInt(iTimePoint);
+            writeDoubles(out, hapParams);
+        }, in -> null);
+    }
+
+    void setPriors(int iCluster, double[] priors) {
+        broadcast(out -> {
+            out.writeByte(SET_PRIORS);
+            out.writeInt(iCluster);
+            writeDoubles(out, priors);
+        }, in -> null);
+    }
+
+    /**
+     * Chunk sums of a site term over a reduction, in chunk order, for SiteReduction.combine
+     */
+    double[] sum(int iCluster, int reduction, Term term, int iTimePoint) {
+        List<double[]> parts = broadcast(out -> {
+            out.writeByte(SUM);
+            out.writeInt(iCluster);
+            out.writeInt(reduction);
+            out.writeInt(term.ordinal());
+            out.writeInt(iTimePoint);
+        }, Shards::readDoubles);
+        int nChunks = 0;
+        for (double[] part : parts) {
+            nChunks += part.length;
+        }
+        double[] sums = new double[nChunks];
+        int iChunk = 0;
+        for (double[] part : parts) {
+            System.arraycopy(part, 0, sums, iChunk, part.length);
+            iChunk += part.length;
+        }
+        return sums;
+    }
+
+    /**
+     * Chunk sums of a vector site term over the variable sites, in chunk order
+     */
+    double[][] vectorSum(int iCluster, Term term, int iTimePoint) {
+        List<double[][]> parts = broadcast(out -> {
+            out.writeByte(VECTOR_SUM);
+            out.writeInt(iCluster);
+            out.writeInt(term.ordinal());
+            out.writeInt(iTimePoint);
+        }, in -> {
+            double[][] part = new double[in.readInt()][];
+            for (int iChunk = 0; iChunk < part.length; iChunk++) {
+                part[iChunk] = readDoubles(in);
+            }
+            return part;
+        });
+        List<double[]> sums = new ArrayList<>();
+        for (double[][] part : parts) {
+            sums.addAll(Arrays.asList(part));
+        }
+        return sums.toArray(new double[0][]);
+    }
+
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reply<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Sends a request to every worker, then reads every reply, so the workers serve it concurrently
+     */
+    private <T> List<T> broadcast(Request request, Reply<T> reply) {
+        Connection[] connections = new Connection[nWorkers];
+        try {
+            for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+                connections[iWorker] = borrow(iWorker);
+                request.write(connections[iWorker].out);
+                connections[iWorker].out.flush();
+            }
+            List<T> replies = new ArrayList<>();
+            for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+                DataInputStream in = connections[iWorker].in;
+                if (in.readByte() != OK) {
+                    throw new IllegalStateException(String.format("Worker %d failed: %s", iWorker, in.readUTF()));
+                }
+                replies.add(reply.read(in));
+            }
+            for (int iWorker = 0; iWorker < nWorkers; iWorker++) {
+                idle.get(iWorker).add(connections[iWorker]);
+            }
+            return replies;
+        } catch (IOException e) {
+            closeAll(connections);
+            throw new UncheckedIOException("Lost contact with a worker", e);
+        } catch (RuntimeException e) {
+            closeAll(connections);   // replies may be left unread
+            throw e;
+        }
+    }
+
+    private Connection borrow(int iWorker) throws IOException {
+        Connection connection = idle.get(iWorker).poll();
+        return connection != null ? connection : new Connection(new Socket(InetAddress.getLoopbackAddress(), ports[iWorker]));
+    }
+
+    private static void closeAll(Connection[] connections) {
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers by closing their connections, and waits for them to exit
+     */
+    @Override
+    public void close() {
+        for (ConcurrentLinkedQueue<Connection> connections : idle) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        for (Connection connection : control) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        try {
+            server.close();
+            for (Process process : processes) {
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    /**
+     * Buffered streams over one socket to a worker
+     */
+    static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
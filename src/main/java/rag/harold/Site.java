@@ -1,246 +1,274 @@
 package rag.harold;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.DoubleBuffer;
 
 
 /**
- * Container for the reads at a single site
+ * Likelihood kernels over the variable site patterns of a SiteTable, holding the assignment probabilities
+ * of each pattern; conserved sites are summed by {@link ConservedDepths}. Sites are passed as the SiteTable
+ * row of their pattern, and per-pattern state is found through LogGammaTable.patternIndex.
  *
  * @author rgoldst
  */
 public class Site {
-    private final GammaCalc gamma;
-    int iSite;
-    double[] estProbDiffBases = new double[5];
-    int conservedBase = -9;
-    boolean siteConserved = false;
-    double totalLogLikelihood = 0.0;
+    private final SiteTable table;
+    private final LogGammaTable logGamma;
     private int nTimePoints;
     private int nHaplo = 0;
-    private int nBases = 0;
-    private ArrayList<Assignment> assignmentVector;
-    private ArrayList<Assignment> localAssignmentVector = new ArrayList<>();
-    private double[] probAssignment = null;
-    private double[] priorProb = new double[2];
-    private int nAssignments = 0;
+    private Assignment[][] assignmentsByMask;  // [present-base mask] assignments using only those bases
+    private int[] probOffset;  // [pattern] start of the pattern's entries in probAssignment
+    private DoubleBuffer probAssignment;  // [pattern][local assignment]
+    private double[] assignTerm;  // [pattern][tp][local assignment] cached data log-likelihood, null if not cached
+    private int[] assignGeneration;  // [pattern][tp][local assignment] LogGammaTable generation of assignTerm
+    private double[] strandTerm;  // [pattern][tp] cached strand-total term shared by the pattern's assignments
+    private int[] strandGeneration;  // [pattern][tp] LogGammaTable generation of strandTerm
+    private DoubleBuffer estProbDiffBases;  // [pattern][nBases], five entries per pattern
+    private double pruneMargin = 0.0;  // see setPruneMargin
     private String[] baseString = {"A", "C", "G", "T"};
-    private int[][][] strandReads = null; // [tp][strand][base] top two sets of reads on each strand
-    private int[][] totStrand = null; // [tp][strand] number of reads on each strand
-    private int[][] reads = null; // [tp][base]
-    private int[] totReads = null; // [tp]
-    private int[] timePointConservedBase = null;
-    private boolean siteActive = false;
-    private int nPresentBase = 0;   // number of present bases
-    private boolean[] presentBase = new boolean[4];
-    private boolean[] timePointConserved = null;
-    private boolean[] timePointHasData = null;
 
-    Site(int iSite, int nTimePoints, int nHaplo, ArrayList<Assignment> assignmentVector, GammaCalc gammaCalc) {
-        this.gamma = gammaCalc;
-        this.iSite = iSite;
-        this.nTimePoints = nTimePoints;
+    /**
+     * Sites share the assignment list of their set of present bases, so only the offsets of their
+     * assignment probabilities are per pattern. patterns are the rows of the variable site patterns, in the
+     * order of logGamma. Per-pattern state is allocated from store; a mapped store also turns off the term
+     * caches.
+     */
+    Site(SiteTable table, int nHaplo, Assignment[][] assignmentsByMask, LogGammaTable logGamma, int[] patterns,
+         StateStore store) {
+        this.table = table;
+        this.logGamma = logGamma;
+        this.nTimePoints = table.nTimePoints;
         this.nHaplo = nHaplo;
-        this.assignmentVector = assignmentVector;
-        nAssignments = assignmentVector.size();
-        strandReads = new int[nTimePoints][2][4]; // [tp][strand][base] top two sets of reads on each strand
-        totStrand = new int[nTimePoints][2]; // [tp][strand] number of reads on each strand
-        reads = new int[nTimePoints][4]; // [tp][base]
-        totReads = new int[nTimePoints]; // [tp]
-        timePointConserved = new boolean[nTimePoints];
-        timePointHasData = new boolean[nTimePoints];
-        timePointConservedBase = new int[nTimePoints];
-        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-            timePointHasData[iTimePoint] = false; // assume timepoint does not have data
-            timePointConserved[iTimePoint] = false; // assume timepoint is not conserved
+        this.assignmentsByMask = assignmentsByMask;
+        int nPatterns = patterns.length;
+        probOffset = new int[nPatterns + 1];
+        for (int iPattern = 0; iPattern < nPatterns; iPattern++) {
+            probOffset[iPattern + 1] = probOffset[iPattern] + localAssignments(patterns[iPattern]).length;
+        }
+        probAssignment = store.doubles(probOffset[nPatterns]);
+        estProbDiffBases = store.doubles(5 * nPatterns);
+        if (!store.isMapped()) {
+            assignTerm = new double[probOffset[nPatterns] * nTimePoints];
+            assignGeneration = new int[probOffset[nPatterns] * nTimePoints];
+            strandTerm = new double[nPatterns * nTimePoints];
+            strandGeneration = new int[nPatterns * nTimePoints];
         }
     }
 
-    void addTimePoint(int iTimePoint, String line) {
-        String[] words = line.split("\\t");
-        for (int iBase = 0; iBase < 4; iBase++) {   // compute various sums of reads
-            for (int iStrand = 0; iStrand < 2; iStrand++) {
-                strandReads[iTimePoint][iStrand][iBase] = Integer.parseInt(words[5 + iBase].split(":")[5 + iStrand]);
-                reads[iTimePoint][iBase] += strandReads[iTimePoint][iStrand][iBase];
-            }
-            for (int iStrand = 0; iStrand < 2; iStrand++) {
-                totStrand[iTimePoint][iStrand] += strandReads[iTimePoint][iStrand][iBase];
-                totReads[iTimePoint] += strandReads[iTimePoint][iStrand][iBase];
-            }
+    /**
+     * Evaluates every term afresh from here on, for a copy whose sites are summed elsewhere
+     */
+    void dropTermCaches() {
+        assignTerm = null;
+        assignGeneration = null;
+        strandTerm = null;
+        strandGeneration = null;
+    }
 
+    /**
+     * Start of the cached assignment terms of a site and timepoint. Cached terms are tagged with the
+     * LogGammaTable generation of their timepoint and recomputed once the timepoint's frequencies or the
+     * alpha parameters have changed, so only changed timepoints are re-evaluated and the E-step and the
+     * objective share evaluations.
+     */
+    private int termOffset(int iSite, int iTimePoint, int nLocal) {
+        return probOffset[logGamma.patternIndex(iSite)] * nTimePoints + iTimePoint * nLocal;
+    }
 
-            if (reads[iTimePoint][iBase] > 0) {
-                conservedBase = iBase;
-                presentBase[iBase] = true;
-            }
+    /**
+     * Strand-total term of a site and timepoint, shared by the site's assignments
+     */
+    private double timePointStrandTerm(int iSite, int iTimePoint) {
+        if (strandTerm == null) {
+            return logGamma.strandTerm(iSite, iTimePoint);
         }
-        if (totReads[iTimePoint] > 0) {   // has data
-            timePointHasData[iTimePoint] = true;
+        int index = logGamma.patternIndex(iSite) * nTimePoints + iTimePoint;
+        int generation = logGamma.getGeneration(iTimePoint);
+        if (strandGeneration[index] != generation) {
+            strandTerm[index] = logGamma.strandTerm(iSite, iTimePoint);
+            strandGeneration[index] = generation;
         }
-        if (Math.max(Math.max(reads[iTimePoint][0], reads[iTimePoint][1]),
-                Math.max(reads[iTimePoint][2], reads[iTimePoint][3])) == totReads[iTimePoint]) {  // timePointConserved site
-            timePointConserved[iTimePoint] = true;
-            for (int iBase = 0; iBase < 4; iBase++) {
-                if (reads[iTimePoint][iBase] == totReads[iTimePoint]) {
-                    timePointConservedBase[iTimePoint] = iBase;
-                }
-            }
+        return strandTerm[index];
+    }
+
+    /**
+     * Data log-likelihood of one assignment at a site and timepoint, excluding the strand term
+     */
+    private double assignmentTerm(Assignment assignment, int iSite, int iTimePoint, int termIndex) {
+        if (assignTerm == null) {
+            return assignment.computeAssignmentLogLikelihood(logGamma, iTimePoint, logGamma.slotOffset(iSite, iTimePoint));
+        }
+        int generation = logGamma.getGeneration(iTimePoint);
+        if (assignGeneration[termIndex] != generation) {
+            assignTerm[termIndex] = assignment.computeAssignmentLogLikelihood(logGamma, iTimePoint,
+                    logGamma.slotOffset(iSite, iTimePoint));
+            assignGeneration[termIndex] = generation;
         }
+        return assignTerm[termIndex];
     }
 
+    /**
+     * Assignments using only bases present at a site
+     */
+    private Assignment[] localAssignments(int iSite) {
+        return assignmentsByMask[table.presentBase[iSite]];
+    }
 
-    boolean isActive() {
-        siteActive = false;
-        for (int iBase = 0; iBase < 4; iBase++) {
-            if (presentBase[iBase]) {
-                nPresentBase++;
-                siteActive = true;
-            }
-        }
-        siteConserved = (nPresentBase == 1);
-        for (Assignment assignment : assignmentVector) {
-            boolean addThis = true;
-            for (int iBase = 0; iBase < 4; iBase++) {
-                if (assignment.presentBase[iBase] && !presentBase[iBase]) {
-                    addThis = false;
-                }
-            }
-            if (addThis) {
-                localAssignmentVector.add(assignment);
-            }
+    /**
+     * Relative cost of evaluating a site, used to balance parallel work
+     */
+    int cost(int iSite) {
+        return localAssignments(iSite).length;
+    }
+
+    /**
+     * Assignment probabilities of every variable site pattern, in pattern order, as a view of the live values
+     */
+    DoubleBuffer getProbAssignment() {
+        return probAssignment.duplicate();
+    }
+
+    /**
+     * Replaces every assignment probability with those in probabilities, which must have one for each
+     */
+    void setProbAssignment(DoubleBuffer probabilities) {
+        if (probabilities.capacity() != probAssignment.capacity()) {
+            throw new IllegalStateException(String.format("Expected %d assignment probabilities, found %d",
+                    probAssignment.capacity(), probabilities.capacity()));
         }
-        smellTest();
-        return siteActive;
+        DoubleBuffer from = probabilities.duplicate();
+        from.clear();
+        DoubleBuffer to = probAssignment.duplicate();
+        to.clear();
+        to.put(from);
     }
 
-    double assignHaplotypes(double[] alphaParams, double[] priors) {
-        double alpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
-        double alphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
-        estProbDiffBases = new double[5];
-        double logLikelihood = 0.0;
-        if (siteConserved) {
-            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                for (int iStrand = 0; iStrand < 2; iStrand++) {
-                    logLikelihood += priors[1] + this.gamma.logGamma(alpha0 + 3.0 * alphaE)
-                            - this.gamma.logGamma(alpha0 + 3.0 * alphaE + totStrand[iTimePoint][iStrand])
-                            + this.gamma.logGamma(alpha0 + totStrand[iTimePoint][iStrand])
-                            - this.gamma.logGamma(alpha0);
-                }
-            }
-            estProbDiffBases[1] = 1.0;
-            return logLikelihood;
+    /**
+     * Lets assignHaplotypes stop evaluating an assignment once an upper bound on its log-likelihood, the
+     * timepoints so far plus LogGammaTable.assignmentBound for the rest, is more than margin below the best
+     * assignment so far; 0 evaluates every assignment. The assignment most probable at the last E-step is
+     * evaluated first.
+     * <p>
+     * A skipped assignment a is given probability 0. It was skipped because its log-likelihood lnL(a) was
+     * bounded below lnL(best) - margin, so its true probability relative to the best, exp(lnL(a) - lnL(best)),
+     * is below exp(-margin). With n local assignments, n at most 4^nHaplo, the site's log-likelihood is
+     * therefore underestimated by less than log(1 + n exp(-margin)) &lt; n exp(-margin), and every other
+     * probability is overestimated by less than a factor 1 + n exp(-margin).
+     * <p>
+     * The shares of assignments by number of bases, from which the priors are estimated, weigh each
+     * assignment by its probability divided by its prior, relative to the best. A skipped assignment's weight
+     * is therefore below exp(-margin) pmax / pmin, where pmax / pmin is the ratio of the largest to the
+     * smallest prior, and each share changes by less than n exp(-margin) pmax / pmin. A margin of 30 keeps
+     * n exp(-margin) below 1e-10 up to five haplotypes.
+     */
+    void setPruneMargin(double margin) {
+        this.pruneMargin = margin;
+    }
+
+    double assignHaplotypes(int iSite, double[] priors) {
+        int iPattern = logGamma.patternIndex(iSite);
+        int estOffset = 5 * iPattern;
+        for (int nBase = 0; nBase < 5; nBase++) {
+            estProbDiffBases.put(estOffset + nBase, 0.0);
         }
-        probAssignment = new double[localAssignmentVector.size()];
-        double[] logLikelihoodAssign = new double[localAssignmentVector.size()];
+        double logLikelihood = 0.0;
+        Assignment[] local = localAssignments(iSite);
+        int probStart = probOffset[iPattern];
+        Scratch scratch = Scratch.get();
+        double[] logLikelihoodAssign = scratch.assign(local.length);
         double sumProb = 0.0;
         int bestAssign = -999;
         double bestAssignVal = -1.0E20;
-        for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-            Assignment assignment = localAssignmentVector.get(iAssign);
+        double siteStrandTerm = 0.0;  // Shared by all assignments
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            siteStrandTerm += timePointStrandTerm(iSite, iTimePoint);
+        }
+        int siteTermOffset = termOffset(iSite, 0, local.length);  // [tp][local assignment] terms start here
+        double[] remainingBound = null;  // [tp] bound on the terms of timepoints tp onwards, when pruning
+        int first = 0;
+        if (pruneMargin > 0.0) {
+            remainingBound = scratch.timePoints(nTimePoints + 1);
+            remainingBound[nTimePoints] = 0.0;
+            for (int iTimePoint = nTimePoints - 1; iTimePoint >= 0; iTimePoint--) {
+                remainingBound[iTimePoint] = remainingBound[iTimePoint + 1]
+                        + logGamma.assignmentBound(logGamma.slotOffset(iSite, iTimePoint), iTimePoint);
+            }
+            for (int iAssign = 1; iAssign < local.length; iAssign++) {
+                if (probAssignment.get(probStart + iAssign) > probAssignment.get(probStart + first)) {
+                    first = iAssign;
+                }
+            }
+        }
+        int nPruned = 0;  // assignment terms not evaluated
+        for (int iOrder = 0; iOrder < local.length; iOrder++) {
+            int iAssign = iOrder == 0 ? first : iOrder <= first ? iOrder - 1 : iOrder;
+            Assignment assignment = local[iAssign];
+            double value = nTimePoints * priors[assignment.nPresent] + siteStrandTerm;
             for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                logLikelihoodAssign[iAssign] += priors[localAssignmentVector.get(iAssign).nPresent]
-                        + assignment.computeAssignmentLogLikelihood(iTimePoint, strandReads[iTimePoint],
-                        reads[iTimePoint], totStrand[iTimePoint], siteConserved);
+                value += assignmentTerm(assignment, iSite, iTimePoint, siteTermOffset + iTimePoint * local.length + iAssign);
+                if (remainingBound != null && iTimePoint < nTimePoints - 1
+                        && value + remainingBound[iTimePoint + 1] < bestAssignVal - pruneMargin) {
+                    value = Double.NEGATIVE_INFINITY;
+                    nPruned += nTimePoints - 1 - iTimePoint;
+                    break;
+                }
             }
+            logLikelihoodAssign[iAssign] = value;
             if (logLikelihoodAssign[iAssign] > bestAssignVal) {
                 bestAssignVal = logLikelihoodAssign[iAssign];
                 bestAssign = iAssign;
             }
         }
 
-
-        for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-            probAssignment[iAssign] = Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
-            sumProb += probAssignment[iAssign];
-            logLikelihood += probAssignment[iAssign];
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            double relative = Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
+            probAssignment.put(probStart + iAssign, relative);
+            sumProb += relative;
+            logLikelihood += relative;
             double nContrib = Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal
-                    - priors[localAssignmentVector.get(iAssign).nPresent]
-                    + priors[localAssignmentVector.get(bestAssign).nPresent]);
-            estProbDiffBases[localAssignmentVector.get(iAssign).nPresent]
-                    += nContrib;
-            estProbDiffBases[0] += nContrib;
+                    - priors[local[iAssign].nPresent]
+                    + priors[local[bestAssign].nPresent]);
+            int nPresentOffset = estOffset + local[iAssign].nPresent;
+            estProbDiffBases.put(nPresentOffset, estProbDiffBases.get(nPresentOffset) + nContrib);
+            estProbDiffBases.put(estOffset, estProbDiffBases.get(estOffset) + nContrib);
         }
         logLikelihood = bestAssignVal + Math.log(logLikelihood);
-        for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-            probAssignment[iAssign] /= sumProb;
+        if (nPruned > 0) {
+            Metrics.add(Metrics.Counter.PRUNED_ASSIGNMENT_TERMS, nPruned);
         }
-        for (int nBase = 1; nBase < 5; nBase++) {
-            estProbDiffBases[nBase] /= estProbDiffBases[0];
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            probAssignment.put(probStart + iAssign, probAssignment.get(probStart + iAssign) / sumProb);
         }
-
-        if (false) {
-            System.out.print(iSite);
-            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                System.out.print("\t" + Arrays.toString(reads[iTimePoint]));
-            }
-            System.out.println("\t" + Arrays.toString(localAssignmentVector.get(bestAssign).assign) + "\t" + bestAssignVal);
-
+        for (int nBase = 1; nBase < 5; nBase++) {
+            estProbDiffBases.put(estOffset + nBase, estProbDiffBases.get(estOffset + nBase) / estProbDiffBases.get(estOffset));
         }
         return logLikelihood;
     }
 
-    boolean smellTest() {
-        double estProb = 0.0;
-        double actProb = 0.0;
-        boolean smellBad = false;
-        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-            if (totReads[iTimePoint] * totStrand[iTimePoint][0] * totStrand[iTimePoint][1] > 0) {
-                for (int iBase = 0; iBase < 4; iBase++) {
-                    if (reads[iTimePoint][iBase] > 0) {
-                        estProb += this.gamma.logGamma(reads[iTimePoint][iBase] + 0.5)
-                                - this.gamma.logGamma(reads[iTimePoint][iBase] + 1.0) - 0.5723649;
-                        actProb += -reads[iTimePoint][iBase] * 0.6931472 + this.gamma.logGamma(reads[iTimePoint][iBase] + 1)
-                                - this.gamma.logGamma(1.0 + 0.5 * totReads[iTimePoint] * strandReads[iTimePoint][0][iBase] / totStrand[iTimePoint][0])
-                                - this.gamma.logGamma(1.0 + 0.5 * totReads[iTimePoint] * strandReads[iTimePoint][1][iBase] / totStrand[iTimePoint][1]);
-                    }
-                }
-            }
-        }
-        smellBad = (actProb - estProb < -11.512); // 11.512
-        if (smellBad) {
-            System.out.println("Rejected site " + iSite + "\t" + (actProb - estProb));
-        }
-        return smellBad;
-    }
-
-
-    double computeSiteLogLikelihood(double[] alphaParams, double[] priors) {
-        double alpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
-        double alphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
-        totalLogLikelihood = 0.0;
-        if (siteConserved) {
-            double g1 = priors[1] + this.gamma.logGamma(alpha0 + 3.0 * alphaE) - this.gamma.logGamma(alpha0);
-            for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-                int[] thisStrand = totStrand[iTimePoint];
-                for (int iStrand = 0; iStrand < 2; iStrand++) {
-                    totalLogLikelihood += g1
-                            - this.gamma.logGamma(alpha0 + 3.0 * alphaE + thisStrand[iStrand])
-                            + this.gamma.logGamma(alpha0 + thisStrand[iStrand]);
-                }
-            }
-            return totalLogLikelihood;
-        }
-
+    double computeSiteLogLikelihood(int iSite, double[] priors) {
+        double totalLogLikelihood = 0.0;
+        Assignment[] local = localAssignments(iSite);
+        int probStart = probOffset[logGamma.patternIndex(iSite)];
+        double[] logLikelihoodAssign = Scratch.get().assign(local.length);
         for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
-            double[] logLikelihoodAssign = new double[localAssignmentVector.size()];
             double timePointLogLikelihood = 0.0;
             int bestAssign = -999;
             double bestAssignVal = -1.0E20;
-            for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-                if (probAssignment[iAssign] > 0.01) {
-                    Assignment assignment = localAssignmentVector.get(iAssign);
-                    logLikelihoodAssign[iAssign] += priors[localAssignmentVector.get(iAssign).nPresent]
-                            + assignment.computeAssignmentLogLikelihood(iTimePoint, strandReads[iTimePoint],
-                            reads[iTimePoint], totStrand[iTimePoint], siteConserved);
+            int termOffset = termOffset(iSite, iTimePoint, local.length);
+            double timePointStrandTerm = timePointStrandTerm(iSite, iTimePoint);
+            for (int iAssign = 0; iAssign < local.length; iAssign++) {
+                if (probAssignment.get(probStart + iAssign) > 0.01) {
+                    Assignment assignment = local[iAssign];
+                    logLikelihoodAssign[iAssign] = priors[assignment.nPresent] + timePointStrandTerm
+                            + assignmentTerm(assignment, iSite, iTimePoint, termOffset + iAssign);
                     if (logLikelihoodAssign[iAssign] > bestAssignVal) {
                         bestAssignVal = logLikelihoodAssign[iAssign];
                         bestAssign = iAssign;
                     }
                 }
             }
-            for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-                if (probAssignment[iAssign] > 0.01) {
-                    timePointLogLikelihood += probAssignment[iAssign] * Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
+            for (int iAssign = 0; iAssign < local.length; iAssign++) {
+                if (probAssignment.get(probStart + iAssign) > 0.01) {
+                    timePointLogLikelihood += probAssignment.get(probStart + iAssign) * Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
                 }
             }
 
@@ -250,60 +278,106 @@ public class Site {
     }
 
 
-    double computeSiteTimePointLogLikelihood(int iTimePoint, double[] alphaParams, double[] priors) {
-        double alpha0 = alphaParams[0] * (1.0 - alphaParams[1]) / alphaParams[1];
-        double alphaE = (1.0 - alphaParams[0]) * (1.0 - alphaParams[1]) / alphaParams[1];
-        totalLogLikelihood = 0.0;
-        if (siteConserved) {
-            for (int iStrand = 0; iStrand < 2; iStrand++) {
-                totalLogLikelihood += priorProb[0] + this.gamma.logGamma(alpha0 + 3.0 * alphaE)
-                        - this.gamma.logGamma(alpha0 + 3.0 * alphaE + totStrand[iTimePoint][iStrand])
-                        + this.gamma.logGamma(alpha0 + totStrand[iTimePoint][iStrand])
-                        - this.gamma.logGamma(alpha0);
-            }
-            return totalLogLikelihood;
-        }
-        double[] logLikelihoodAssign = new double[localAssignmentVector.size()];
+    double computeSiteTimePointLogLikelihood(int iSite, int iTimePoint, double[] priors) {
+        double totalLogLikelihood = 0.0;
+        Assignment[] local = localAssignments(iSite);
+        int probStart = probOffset[logGamma.patternIndex(iSite)];
+        double[] logLikelihoodAssign = Scratch.get().assign(local.length);
         int bestAssign = -999;
         double bestAssignVal = -1.0E20;
-        for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-            if (probAssignment[iAssign] > 0.01) {
-                Assignment assignment = localAssignmentVector.get(iAssign);
-                logLikelihoodAssign[iAssign] += priors[localAssignmentVector.get(iAssign).nPresent]
-                        + assignment.computeAssignmentLogLikelihood(iTimePoint, strandReads[iTimePoint],
-                        reads[iTimePoint], totStrand[iTimePoint], siteConserved);
+        int termOffset = termOffset(iSite, iTimePoint, local.length);
+        double timePointStrandTerm = timePointStrandTerm(iSite, iTimePoint);
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            if (probAssignment.get(probStart + iAssign) > 0.01) {
+                Assignment assignment = local[iAssign];
+                logLikelihoodAssign[iAssign] = priors[assignment.nPresent] + timePointStrandTerm
+                        + assignmentTerm(assignment, iSite, iTimePoint, termOffset + iAssign);
                 if (logLikelihoodAssign[iAssign] > bestAssignVal) {
                     bestAssignVal = logLikelihoodAssign[iAssign];
                     bestAssign = iAssign;
                 }
             }
         }
-        for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-            if (probAssignment[iAssign] > 0.01) {
-                totalLogLikelihood += probAssignment[iAssign] * Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            if (probAssignment.get(probStart + iAssign) > 0.01) {
+                totalLogLikelihood += probAssignment.get(probStart + iAssign) * Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
             }
         }
         totalLogLikelihood = bestAssignVal + Math.log(totalLogLikelihood);
         return totalLogLikelihood;
     }
 
+    /**
+     * Adds weight times computeSiteTimePointLogLikelihood to sum[0], and weight times its derivatives with
+     * respect to the haplotype frequencies of the timepoint to sum[1 ..]
+     */
+    void addTimePointGradient(int iSite, int iTimePoint, double[] priors, double weight, double[] sum) {
+        Assignment[] local = localAssignments(iSite);
+        int probStart = probOffset[logGamma.patternIndex(iSite)];
+        Scratch scratch = Scratch.get();
+        double[] logLikelihoodAssign = scratch.assign(local.length);
+        double bestAssignVal = -1.0E20;
+        int termOffset = termOffset(iSite, iTimePoint, local.length);
+        double timePointStrandTerm = timePointStrandTerm(iSite, iTimePoint);
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            if (probAssignment.get(probStart + iAssign) > 0.01) {
+                Assignment assignment = local[iAssign];
+                logLikelihoodAssign[iAssign] = priors[assignment.nPresent] + timePointStrandTerm
+                        + assignmentTerm(assignment, iSite, iTimePoint, termOffset + iAssign);
+                if (logLikelihoodAssign[iAssign] > bestAssignVal) {
+                    bestAssignVal = logLikelihoodAssign[iAssign];
+                }
+            }
+        }
+        double likelihood = 0.0;
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            if (probAssignment.get(probStart + iAssign) > 0.01) {
+                logLikelihoodAssign[iAssign] = probAssignment.get(probStart + iAssign) * Math.exp(logLikelihoodAssign[iAssign] - bestAssignVal);
+                likelihood += logLikelihoodAssign[iAssign];
+            }
+        }
+        sum[0] += weight * (bestAssignVal + Math.log(likelihood));
+
+        int slotOffset = logGamma.slotOffset(iSite, iTimePoint);
+        double[] gradient = scratch.haplotypes(nHaplo);
+        for (int iAssign = 0; iAssign < local.length; iAssign++) {
+            if (probAssignment.get(probStart + iAssign) > 0.01) {   // weighted by the assignment's share of the likelihood
+                local[iAssign].addGradient(logGamma, iTimePoint, slotOffset, logLikelihoodAssign[iAssign] / likelihood,
+                        gradient, scratch.bases);
+            }
+        }
+        for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
+            sum[1 + iHaplo] += weight * gradient[iHaplo];
+        }
+    }
+
+
+    /**
+     * Share of a variable site's assignments with nBase bases present (1-4), weighted by assignment
+     * probability over prior, as estimated by the last assignHaplotypes
+     */
+    double getEstProbDiffBases(int iSite, int nBase) {
+        return estProbDiffBases.get(5 * logGamma.patternIndex(iSite) + nBase);
+    }
 
-    double[][] getProbBase() {
+    double[][] getProbBase(int iSite) {
         double[][] expectedFreq = new double[nHaplo][4];
-        if (siteConserved) {
+        if (table.isConserved(iSite)) {
             for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
-                expectedFreq[iHaplo][conservedBase] = 1.0;
+                expectedFreq[iHaplo][table.conservedBase[iSite]] = 1.0;
             }
         } else {
-            for (int iAssign = 0; iAssign < localAssignmentVector.size(); iAssign++) {
-                Assignment assignment = localAssignmentVector.get(iAssign);
+            Assignment[] local = localAssignments(iSite);
+            int probStart = probOffset[logGamma.patternIndex(iSite)];
+            for (int iAssign = 0; iAssign < local.length; iAssign++) {
+                Assignment assignment = local[iAssign];
                 for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
-                    expectedFreq[iHaplo][assignment.assign[iHaplo]] += probAssignment[iAssign];
+                    expectedFreq[iHaplo][assignment.assign[iHaplo]] += probAssignment.get(probStart + iAssign);
                 }
             }
         }
-        if (!siteConserved) {
-            if (smellTest()) {
+        if (!table.isConserved(iSite)) {
+            if (table.isSmellBad(iSite)) {
                 for (int iHaplo = 0; iHaplo < nHaplo; iHaplo++) {
                     for (int iBase = 0; iBase < 4; iBase++) {
                         expectedFreq[iHaplo][iBase] = 0.0;
@@ -0,0 +1,255 @@
+package rag.harold;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Parallel sum of a per-site quantity over a fixed list of SiteTable rows.
+ * <p>
+ * Sites are split into contiguous chunks of roughly equal cost (the number of assignments evaluated at
+ * each site). Chunk boundaries depend only on the sites, never on the number of threads, and chunk sums
+ * are combined pairwise in a fixed tree, so the total is bit-identical for any size of thread pool.
+ * A site can stand for several identical sites by carrying a weight.
+ */
+class SiteReduction {
+    private static final int CHUNK_COST = 1 << 14;  // Target number of assignment evaluations per chunk
+    private static final int FOR_EACH_CHUNK = 1 << 10;  // Sites per task in forEach
+
+    private final ForkJoinPool pool;
+    private final int[] sites;  // Rows of the SiteTable, in order
+    private final int[] weights;  // Number of identical sites each row stands for, or null for one each
+    private final int[] chunkStart;  // chunk i holds sites[chunkStart[i]] .. sites[chunkStart[i + 1] - 1]
+    private final int nChunks;
+    private final boolean windowed;  // chunks are fixed windows, checked against the heap limit
+
+    SiteReduction(int[] sites, IntUnaryOperator cost, ForkJoinPool pool) {
+        this(sites, null, cost, pool);
+    }
+
+    SiteReduction(int[] sites, int[] weights, IntUnaryOperator cost, ForkJoinPool pool) {
+        this(sites, weights, cost, 0, pool);
+    }
+
+    /**
+     * @param window if positive, chunks are windows of this many consecutive sites rather than balanced by
+     *               cost, and the heap limit is checked after each
+     */
+    SiteReduction(int[] sites, int[] weights, IntUnaryOperator cost, int window, ForkJoinPool pool) {
+        this.pool = pool;
+        this.sites = sites;
+        this.weights = weights;
+        this.windowed = window > 0;
+
+        ArrayList<Integer> starts = new ArrayList<>();
+        int chunkCost = CHUNK_COST;
+        for (int iSite = 0; iSite < sites.length; iSite++) {
+            if (windowed ? iSite % window == 0 : chunkCost >= CHUNK_COST) {   // start a new chunk
+                starts.add(iSite);
+                chunkCost = 0;
+            }
+            chunkCost += windowed ? 0 : cost.applyAsInt(sites[iSite]);
+        }
+        nChunks = starts.size();
+        chunkStart = new int[nChunks + 1];
+        for (int iChunk = 0; iChunk < nChunks; iChunk++) {
+            chunkStart[iChunk] = starts.get(iChunk);
+        }
+        chunkStart[nChunks] = sites.length;
+    }
+
+    /**
+     * Sites split at the given chunk starts, which end with sites.length, as chunks from getChunkStarts()
+     * are rebuilt in a worker of a sharded run
+     */
+    SiteReduction(int[] sites, int[] weights, int[] chunkStart, boolean windowed, ForkJoinPool pool) {
+        this.pool = pool;
+        this.sites = sites;
+        this.weights = weights;
+        this.windowed = windowed;
+        this.chunkStart = chunkStart;
+        this.nChunks = chunkStart.length - 1;
+    }
+
+    double sum(IntToDoubleFunction function) {
+        return combine(sumChunks(function, 0, nChunks));
+    }
+
+    /**
+     * Sums of chunks [from, to) in parallel, for combine() here or in another process over the same sites
+     */
+    double[] sumChunks(IntToDoubleFunction function, int from, int to) {
+        double[] sums = new double[to - from];
+        forEachChunk(from, to, iChunk -> sums[iChunk - from] = sumChunk(function, iChunk));
+        return sums;
+    }
+
+    /**
+     * Total of all the chunk sums, added pairwise in a tree that only depends on the number of chunks
+     */
+    double combine(double[] chunkSums) {
+        if (nChunks == 0) {
+            return 0.0;
+        }
+        return combine(chunkSums, 0, nChunks);
+    }
+
+    private static double combine(double[] chunkSums, int lo, int hi) {
+        if (hi - lo == 1) {
+            return chunkSums[lo];
+        }
+        int mid = (lo + hi) >>> 1;
+        return combine(chunkSums, lo, mid) + combine(chunkSums, mid, hi);
+    }
+
+    /**
+     * Term of a vector sum: adds weight times the site's contribution to sum
+     */
+    interface VectorTerm {
+        void add(int iSite, double weight, double[] sum);
+    }
+
+    /**
+     * Parallel sum of a vector quantity of the given length, in the same fixed chunks and tree as sum()
+     */
+    double[] sum(int length, VectorTerm term) {
+        return combine(length, sumChunks(length, term, 0, nChunks));
+    }
+
+    /**
+     * Vector sums of chunks [from, to) in parallel, as sumChunks above
+     */
+    double[][] sumChunks(int length, VectorTerm term, int from, int to) {
+        double[][] sums = new double[to - from][];
+        forEachChunk(from, to, iChunk -> {
+            double[] total = new double[length];
+            for (int iSite = chunkStart[iChunk]; iSite < chunkStart[iChunk + 1]; iSite++) {
+                term.add(sites[iSite], weights == null ? 1.0 : weights[iSite], total);
+            }
+            if (windowed) {
+                HeapLimit.check();
+            }
+            sums[iChunk - from] = total;
+        });
+        return sums;
+    }
+
+    /**
+     * Total of all the vector chunk sums, in the same tree as combine(double[])
+     */
+    double[] combine(int length, double[][] chunkSums) {
+        if (nChunks == 0) {
+            return new double[length];
+        }
+        return combine(chunkSums, 0, nChunks);
+    }
+
+    private static double[] combine(double[][] chunkSums, int lo, int hi) {
+        if (hi - lo == 1) {
+            return chunkSums[lo].clone();
+        }
+        int mid = (lo + hi) >>> 1;
+        double[] total = combine(chunkSums, lo, mid);
+        double[] right = combine(chunkSums, mid, hi);
+        for (int i = 0; i < total.length; i++) {
+            total[i] += right[i];
+        }
+        return total;
+    }
+
+    int size() {
+        return sites.length;
+    }
+
+    /**
+     * Rows summed over, in order; not to be modified
+     */
+    int[] getSites() {
+        return sites;
+    }
+
+    /**
+     * Number of identical sites each row stands for, or null for one each; not to be modified
+     */
+    int[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Index in getSites() of the first site of each chunk, then the number of sites; not to be modified
+     */
+    int[] getChunkStarts() {
+        return chunkStart;
+    }
+
+    /**
+     * Number of chunks, which depends only on the sites and the window
+     */
+    int chunkCount() {
+        return nChunks;
+    }
+
+    private double sumChunk(IntToDoubleFunction function, int iChunk) {
+        double total = 0.0;
+        for (int iSite = chunkStart[iChunk]; iSite < chunkStart[iChunk + 1]; iSite++) {
+            if (weights == null) {
+                total += function.applyAsDouble(sites[iSite]);
+            } else {
+                total += weights[iSite] * function.applyAsDouble(sites[iSite]);
+            }
+        }
+        if (windowed) {
+            HeapLimit.check();
+        }
+        return total;
+    }
+
+    /**
+     * Applies an action to every site 0 .. nSites - 1 in parallel; the action must only touch its own site
+     */
+    static void forEach(int nSites, IntConsumer action, ForkJoinPool pool) {
+        if (nSites > 0) {
+            pool.invoke(new ForEach(action, 0, nSites, FOR_EACH_CHUNK));
+        }
+    }
+
+    /**
+     * Applies an action to every chunk in [from, to) in parallel, one task per chunk
+     */
+    private void forEachChunk(int from, int to, IntConsumer action) {
+        if (to > from) {
+            pool.invoke(new ForEach(action, from, to, 1));
+        }
+    }
+
+    private static class ForEach extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer action;
+        private final int lo;
+        private final int hi;
+        private final int grain;  // most indices run by one task
+
+        ForEach(IntConsumer action, int lo, int hi, int grain) {
+            this.action = action;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                for (int i = lo; i < hi; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ForEach(action, lo, mid, grain), new ForEach(action, mid, hi, grain));
+            }
+        }
+    }
+}
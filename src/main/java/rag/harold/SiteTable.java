@@ -0,0 +1,321 @@
+package rag.harold;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Column store of the reads at every site, one row per genome position.
+ * <p>
+ * Strand counts for all sites live in one flat buffer indexed [site][timepoint][strand][base], with the
+ * per-site flags and conserved base in parallel arrays, so the kernels in {@link Site} stream over
+ * contiguous memory rather than one object per site. The count buffers are heap arrays after parsing, or
+ * read-only views of a memory-mapped {@link SiteTableCache} file.
+ */
+class SiteTable {
+    static final int STRAND_BASES = 2 * Constants.MAX_BASES;  // Counts stored per site and timepoint
+
+    static final byte ACTIVE = 1;     // Site has reads at some timepoint
+    static final byte CONSERVED = 2;  // Only one base ever observed
+    static final byte SMELL_BAD = 4;  // Strand counts failed the smell test
+
+    final int nTimePoints;
+    private final int nSites;
+    private int nFilled = 0;  // Rows added so far while building
+    final int[] position;       // [site] position in genome
+    final IntBuffer strandReads;  // [site][tp][strand][base]
+    final IntBuffer totStrand;    // [site][tp][strand]
+    final byte[] presentBase;   // [site] bit mask of bases with reads at any timepoint
+    final byte[] conservedBase;
+    final byte[] flags;
+    final int[] appearance;     // rows in order of first appearance in the count files, or null if in row order
+
+    /**
+     * Empty table with room for nSites rows
+     */
+    SiteTable(int nTimePoints, int nSites) {
+        this(nTimePoints, new int[nSites],
+                IntBuffer.wrap(new int[nSites * nTimePoints * STRAND_BASES]),
+                IntBuffer.wrap(new int[nSites * nTimePoints * 2]),
+                new byte[nSites], new byte[nSites], new byte[nSites], null);
+        nFilled = 0;
+    }
+
+    /**
+     * Table over existing columns, all rows filled
+     */
+    SiteTable(int nTimePoints, int[] position, IntBuffer strandReads, IntBuffer totStrand,
+              byte[] presentBase, byte[] conservedBase, byte[] flags, int[] appearance) {
+        this.nTimePoints = nTimePoints;
+        this.nSites = position.length;
+        this.nFilled = nSites;
+        this.position = position;
+        this.strandReads = strandReads;
+        this.totStrand = totStrand;
+        this.presentBase = presentBase;
+        this.conservedBase = conservedBase;
+        this.flags = flags;
+        this.appearance = appearance;
+    }
+
+    /**
+     * Joins the position-sorted blocks of each timepoint into one table, one row per distinct position
+     */
+    static SiteTable merge(ReadCountParser.Block[] blocks) {
+        int nSites = mergeJoin(blocks, null, null);  // first pass only counts the rows
+        long[] firstSeen = new long[nSites];
+        SiteTable table = new SiteTable(blocks.length, nSites);
+        mergeJoin(blocks, table, firstSeen);
+        return new SiteTable(table.nTimePoints, table.position, table.strandReads, table.totStrand,
+                table.presentBase, table.conservedBase, table.flags, appearanceOrder(firstSeen));
+    }
+
+    /**
+     * Adds the rows of blocks to table in position order, or only counts them if table is null. The first
+     * appearance of each row, as its line in the concatenated count files, goes in the high word of
+     * firstSeen and the row in the low word.
+     */
+    private static int mergeJoin(ReadCountParser.Block[] blocks, SiteTable table, long[] firstSeen) {
+        int[] cursor = new int[blocks.length];
+        long[] fileStart = new long[blocks.length];  // lines of the files before each one
+        for (int iTimePoint = 1; iTimePoint < blocks.length; iTimePoint++) {
+            fileStart[iTimePoint] = fileStart[iTimePoint - 1] + blocks[iTimePoint - 1].size;
+        }
+        int nSites = 0;
+        while (true) {
+            boolean remaining = false;
+            int iPosition = Integer.MAX_VALUE;
+            for (int iTimePoint = 0; iTimePoint < blocks.length; iTimePoint++) {
+                if (cursor[iTimePoint] < blocks[iTimePoint].size) {
+                    remaining = true;
+                    iPosition = Math.min(iPosition, blocks[iTimePoint].position[cursor[iTimePoint]]);
+                }
+            }
+            if (!remaining) {
+                return nSites;
+            }
+            int iSite = (table == null) ? nSites : table.addSite(iPosition);
+            nSites++;
+            long first = Long.MAX_VALUE;
+            for (int iTimePoint = 0; iTimePoint < blocks.length; iTimePoint++) {
+                ReadCountParser.Block block = blocks[iTimePoint];
+                while (cursor[iTimePoint] < block.size && block.position[cursor[iTimePoint]] == iPosition) {
+                    if (table != null) {
+                        table.addTimePoint(iSite, iTimePoint, block.strandReads, cursor[iTimePoint] * STRAND_BASES);
+                        first = Math.min(first, fileStart[iTimePoint] + block.fileRow(cursor[iTimePoint]));
+                    }
+                    cursor[iTimePoint]++;
+                }
+            }
+            if (firstSeen != null) {
+                firstSeen[iSite] = (first << 32) | iSite;
+            }
+        }
+    }
+
+    /**
+     * Rows sorted by first appearance, or null if that is already row order
+     */
+    private static int[] appearanceOrder(long[] firstSeen) {
+        boolean inOrder = true;
+        for (int iSite = 1; iSite < firstSeen.length && inOrder; iSite++) {
+            inOrder = firstSeen[iSite - 1] < firstSeen[iSite];
+        }
+        if (inOrder) {
+            return null;
+        }
+        Arrays.sort(firstSeen);
+        int[] appearance = new int[firstSeen.length];
+        for (int iOrder = 0; iOrder < appearance.length; iOrder++) {
+            appearance[iOrder] = (int) firstSeen[iOrder];
+        }
+        return appearance;
+    }
+
+    /**
+     * Fills the next empty row with a new position, returning its index
+     */
+    int addSite(int iPosition) {
+        position[nFilled] = iPosition;
+        conservedBase[nFilled] = -9;
+        return nFilled++;
+    }
+
+    /**
+     * Copies the [strand][base] counts of one timepoint, starting at countOffset, into the given row
+     */
+    void addTimePoint(int iSite, int iTimePoint, int[] counts, int countOffset) {
+        int offset = offset(iSite, iTimePoint);
+        int strandOffset = strandOffset(iSite, iTimePoint);
+        for (int iStrand = 0; iStrand < 2; iStrand++) {
+            for (int iBase = 0; iBase < 4; iBase++) {
+                int count = counts[countOffset + 4 * iStrand + iBase];
+                strandReads.put(offset + 4 * iStrand + iBase, count);
+                totStrand.put(strandOffset + iStrand, totStrand.get(strandOffset + iStrand) + count);
+                if (count > 0) {
+                    presentBase[iSite] |= 1 << iBase;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the active, conserved and smell test flags of every site, in parallel
+     */
+    void computeFlags(GammaCalc gamma, ForkJoinPool threadPool) {
+        SiteReduction.forEach(nSites, iSite -> {
+            int nPresentBase = nPresentBase(iSite);
+            byte siteFlags = 0;
+            if (nPresentBase > 0) {
+                siteFlags |= ACTIVE;
+            }
+            if (nPresentBase == 1) {
+                siteFlags |= CONSERVED;
+                conservedBase[iSite] = (byte) Integer.numberOfTrailingZeros(presentBase[iSite]);
+            }
+            if (smellScore(iSite, gamma) < -11.512) { // 11.512
+                siteFlags |= SMELL_BAD;
+            }
+            flags[iSite] = siteFlags;
+        }, threadPool);
+    }
+
+    /**
+     * Log ratio of the strand counts' probability to that expected for unbiased strands
+     */
+    double smellScore(int iSite, GammaCalc gamma) {
+        double estProb = 0.0;
+        double actProb = 0.0;
+        for (int iTimePoint = 0; iTimePoint < nTimePoints; iTimePoint++) {
+            int offset = offset(iSite, iTimePoint);
+            int strandOffset = strandOffset(iSite, iTimePoint);
+            int totReads = totReads(iSite, iTimePoint);
+            int totStrand0 = totStrand.get(strandOffset);
+            int totStrand1 = totStrand.get(strandOffset + 1);
+            if (totReads * totStrand0 * totStrand1 > 0) {
+                for (int iBase = 0; iBase < 4; iBase++) {
+                    int reads = reads(iSite, iTimePoint, iBase);
+                    if (reads > 0) {
+                        estProb += gamma.logGamma(reads + 0.5)
+                                - gamma.logGamma(reads + 1.0) - 0.5723649;
+                        actProb += -reads * 0.6931472 + gamma.logGamma(reads + 1)
+                                - gamma.logGamma(1.0 + 0.5 * totReads * strandReads.get(offset + iBase) / totStrand0)
+                                - gamma.logGamma(1.0 + 0.5 * totReads * strandReads.get(offset + 4 + iBase) / totStrand1);
+                    }
+                }
+            }
+        }
+        return actProb - estProb;
+    }
+
+    /**
+     * Maps every row to the first of the given rows with the same strand counts at every timepoint, so
+     * that identical sites are evaluated once; rows not given map to themselves
+     */
+    int[] findPatterns(int[] sites) {
+        int[] patternRow = new int[nSites];
+        for (int iSite = 0; iSite < nSites; iSite++) {
+            patternRow[iSite] = iSite;
+        }
+        HashMap<Pattern, Integer> firstRow = new HashMap<>();
+        for (int iSite : sites) {
+            Integer first = firstRow.putIfAbsent(new Pattern(iSite), iSite);
+            if (first != null) {
+                patternRow[iSite] = first;
+            }
+        }
+        return patternRow;
+    }
+
+    /**
+     * Strand counts of one row, compared by value
+     */
+    private final class Pattern {
+        private final int start;
+        private final int hash;
+
+        Pattern(int iSite) {
+            start = offset(iSite, 0);
+            int h = 1;
+            for (int iRead = start; iRead < start + nTimePoints * STRAND_BASES; iRead++) {
+                h = 31 * h + strandReads.get(iRead);
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Pattern) || ((Pattern) other).hash != hash) {
+                return false;
+            }
+            int otherStart = ((Pattern) other).start;
+            for (int iRead = 0; iRead < nTimePoints * STRAND_BASES; iRead++) {
+                if (strandReads.get(start + iRead) != strandReads.get(otherStart + iRead)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Row of the site that appeared iOrder-th in the count files, the order sites were first read in
+     */
+    int appearanceRow(int iOrder) {
+        return appearance == null ? iOrder : appearance[iOrder];
+    }
+
+    int size() {
+        return nSites;
+    }
+
+    /**
+     * Start of the [strand][base] block of a site and timepoint in strandReads
+     */
+    int offset(int iSite, int iTimePoint) {
+        return (iSite * nTimePoints + iTimePoint) * STRAND_BASES;
+    }
+
+    /**
+     * Start of the [strand] block of a site and timepoint in totStrand
+     */
+    int strandOffset(int iSite, int iTimePoint) {
+        return (iSite * nTimePoints + iTimePoint) * 2;
+    }
+
+    int reads(int iSite, int iTimePoint, int iBase) {
+        int offset = offset(iSite, iTimePoint);
+        return strandReads.get(offset + iBase) + strandReads.get(offset + 4 + iBase);
+    }
+
+    int totReads(int iSite, int iTimePoint) {
+        int strandOffset = strandOffset(iSite, iTimePoint);
+        return totStrand.get(strandOffset) + totStrand.get(strandOffset + 1);
+    }
+
+    int nPresentBase(int iSite) {
+        return Integer.bitCount(presentBase[iSite]);
+    }
+
+    boolean hasBase(int iSite, int iBase) {
+        return (presentBase[iSite] & (1 << iBase)) != 0;
+    }
+
+    boolean isActive(int iSite) {
+        return (flags[iSite] & ACTIVE) != 0;
+    }
+
+    boolean isConserved(int iSite) {
+        return (flags[iSite] & CONSERVED) != 0;
+    }
+
+    boolean isSmellBad(int iSite) {
+        return (flags[iSite] & SMELL_BAD) != 0;
+    }
+}
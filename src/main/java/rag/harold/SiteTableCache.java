@@ -0,0 +1,171 @@
+package rag.harold;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Binary copy of a parsed SiteTable, stored next to the count file as &lt;count file&gt;.cache.
+ * <p>
+ * Layout (little-endian): magic, version, source key, nTimePoints, nSites, whether there is an appearance
+ * column, then the position, presentBase, conservedBase and flags columns, padded to 8 bytes, then the
+ * strandReads and totStrand columns and the appearance column, if any. The
+ * key hashes the path, size and modification time of every count file, so edited data is re-parsed. The
+ * smell test depends on the Gamma engine, so it is left out of the stored flags and run again on load.
+ * A valid cache is memory-mapped read-only and the count columns are used in place, so runs sharing a
+ * cohort share the same pages. The file is mapped as one region, so it is limited to 2 GB, about 40 bytes
+ * per site and timepoint.
+ */
+class SiteTableCache {
+    private static final long MAGIC = 0x4841524F4C445354L;  // "HAROLDST"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 32;
+
+    private final Path cacheFile;
+    private final long key;
+
+    SiteTableCache(File countFilesFile, List<Path> dataFiles) throws IOException {
+        this.cacheFile = new File(countFilesFile.getAbsolutePath() + ".cache").toPath();
+        this.key = computeKey(dataFiles);
+    }
+
+    /**
+     * Maps the cached table and sets its flags with gamma, or returns null if there is none or it is out of date
+     */
+    SiteTable load(GammaCalc gamma, ForkJoinPool threadPool) throws IOException {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION || buffer.getLong(12) != key) {
+                return null;
+            }
+            int nTimePoints = buffer.getInt(20);
+            int nSites = buffer.getInt(24);
+            boolean hasAppearance = buffer.getInt(28) != 0;
+            if (channel.size() != fileSize(nTimePoints, nSites, hasAppearance)) {
+                return null;
+            }
+
+            ((Buffer) buffer).position(HEADER_BYTES);   // Buffer casts keep the class runnable on Java 8
+            int[] position = new int[nSites];
+            buffer.asIntBuffer().get(position);
+            ((Buffer) buffer).position(HEADER_BYTES + 4 * nSites);
+            byte[] presentBase = new byte[nSites];
+            byte[] conservedBase = new byte[nSites];
+            byte[] flags = new byte[nSites];
+            buffer.get(presentBase).get(conservedBase).get(flags);
+            int countStart = countStart(nSites);
+            IntBuffer strandReads = intView(buffer, countStart, nSites * nTimePoints * SiteTable.STRAND_BASES);
+            IntBuffer totStrand = intView(buffer, countStart + 4 * strandReads.capacity(), nSites * nTimePoints * 2);
+            int[] appearance = null;
+            if (hasAppearance) {
+                appearance = new int[nSites];
+                intView(buffer, countStart + 4 * (strandReads.capacity() + totStrand.capacity()), nSites).get(appearance);
+            }
+            SiteTable table = new SiteTable(nTimePoints, position, strandReads, totStrand, presentBase, conservedBase,
+                    flags, appearance);
+            table.computeFlags(gamma, threadPool);
+            return table;
+        }
+    }
+
+    /**
+     * Writes the table to a temporary file and moves it into place, so readers never see a partial cache
+     */
+    void write(SiteTable table) throws IOException {
+        int nSites = table.size();
+        int nTimePoints = table.nTimePoints;
+        long size = fileSize(nTimePoints, nSites, table.appearance != null);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Cache of %d sites at %d timepoints needs %d bytes, over the 2 GB limit of one mapping",
+                    nSites, nTimePoints, size));
+        }
+        Path tempFile = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                boolean hasAppearance = table.appearance != null;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putLong(MAGIC).putInt(VERSION).putLong(key).putInt(nTimePoints).putInt(nSites)
+                        .putInt(hasAppearance ? 1 : 0);
+                ((Buffer) buffer).position(HEADER_BYTES);
+                buffer.asIntBuffer().put(table.position);
+                ((Buffer) buffer).position(HEADER_BYTES + 4 * nSites);
+                buffer.put(table.presentBase).put(table.conservedBase);
+                for (byte siteFlags : table.flags) {
+                    buffer.put((byte) (siteFlags & ~SiteTable.SMELL_BAD));
+                }
+                int countStart = countStart(nSites);
+                IntBuffer strandReads = table.strandReads.duplicate();
+                IntBuffer totStrand = table.totStrand.duplicate();
+                ((Buffer) strandReads).clear();
+                ((Buffer) totStrand).clear();
+                intView(buffer, countStart, strandReads.capacity()).put(strandReads);
+                intView(buffer, countStart + 4 * strandReads.capacity(), totStrand.capacity()).put(totStrand);
+                if (hasAppearance) {
+                    intView(buffer, countStart + 4 * (strandReads.capacity() + totStrand.capacity()), nSites)
+                            .put(table.appearance);
+                }
+                buffer.force();
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    Path getPath() {
+        return cacheFile;
+    }
+
+    private static IntBuffer intView(ByteBuffer buffer, int start, int length) {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(start).limit(start + 4 * length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static int countStart(int nSites) {
+        return (HEADER_BYTES + 7 * nSites + 7) & ~7;
+    }
+
+    private static long fileSize(int nTimePoints, int nSites, boolean hasAppearance) {
+        return countStart(nSites) + 4L * nSites * (nTimePoints * (SiteTable.STRAND_BASES + 2) + (hasAppearance ? 1 : 0));
+    }
+
+    /**
+     * FNV-1a hash of the path, size and modification time of each count file
+     */
+    private static long computeKey(List<Path> dataFiles) throws IOException {
+        StringBuilder description = new StringBuilder();
+        description.append(VERSION);
+        for (Path dataFile : dataFiles) {
+            description.append('\n').append(dataFile.toAbsolutePath())
+                    .append('\t').append(Files.size(dataFile))
+                    .append('\t').append(Files.getLastModifiedTime(dataFile).toMillis());
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : description.toString().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
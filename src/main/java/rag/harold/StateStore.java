@@ -0,0 +1,95 @@
+package rag.harold;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage for the per-site state of a DataSet: assignment probabilities, base-number estimates and
+ * read-count slots.
+ * <p>
+ * By default the arrays are on the heap. In streaming mode each one is a temporary file mapped into memory,
+ * so state proportional to genome length is paged by the operating system instead of held in the Java
+ * heap, sites are reduced in fixed windows of consecutive rows, and the term caches of {@link Site}, which
+ * grow with sites times timepoints times assignments, are not kept. The heap still grows with the number
+ * of sites by a few ints and bytes per site: the positions, base masks, flags and appearance order of
+ * {@link SiteTable}, the pattern indices of {@link LogGammaTable} and DataSet, the offsets of each pattern's
+ * assignments in Site, and, while the patterns are found, the map from pattern to first row.
+ */
+class StateStore {
+    private final Path directory;  // where mapped files are created, or null for the heap
+    private final int window;      // rows per reduction window when mapped
+
+    private StateStore(Path directory, int window) {
+        this.directory = directory;
+        this.window = window;
+    }
+
+    static StateStore heap() {
+        return new StateStore(null, 0);
+    }
+
+    /**
+     * Maps state to temporary files in directory and reduces sites in windows of the given number of rows
+     */
+    static StateStore mapped(Path directory, int window) {
+        return new StateStore(directory, window);
+    }
+
+    boolean isMapped() {
+        return directory != null;
+    }
+
+    /**
+     * Rows per reduction window, or 0 to balance chunks by cost
+     */
+    int getWindow() {
+        return window;
+    }
+
+    DoubleBuffer doubles(int length) {
+        if (!isMapped()) {
+            return DoubleBuffer.wrap(new double[length]);
+        }
+        return map(8L * length, "doubles").asDoubleBuffer();
+    }
+
+    IntBuffer ints(int length) {
+        if (!isMapped()) {
+            return IntBuffer.wrap(new int[length]);
+        }
+        return map(4L * length, "ints").asIntBuffer();
+    }
+
+    /**
+     * Zero-filled region of a new temporary file, deleted once mapped where the platform allows it
+     */
+    private MappedByteBuffer map(long bytes, String what) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException(String.format("Streaming state of %d %s is over the 2 GB limit of one mapping", bytes, what));
+        }
+        try {
+            Path file = Files.createTempFile(directory, "harold-state", ".tmp");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(bytes, 8));
+                buffer.order(ByteOrder.nativeOrder());
+                return buffer;
+            } finally {
+                try {
+                    Files.delete(file);   // the mapping stays valid
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package rag.harold;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a synthetic longitudinal dataset in bam-readcount format, one file per timepoint with a count-file
+ * list, drawn from the model HaROLD fits.
+ * <p>
+ * The haplotypes share a random reference and differ at a fraction of sites, where a second base is carried
+ * by a random subset of them. At each timepoint every strand of a site draws base proportions from the
+ * Dirichlet distribution of the likelihood: a base carried by haplotypes of total frequency p has parameter
+ * alpha0 p + alphaE (1 - p), with alpha0 and alphaE derived from the error rate and dispersion as in
+ * LogGammaTable. Reads are then drawn from those proportions. Depths are gamma-Poisson (negative binomial)
+ * with the given mean and shape, and each read falls on the forward strand with the strand-bias
+ * probability. The true frequencies and haplotypes are written to truth.txt and haplotypes.fasta.
+ * <p>
+ * Run using: java -cp harold-1.0.jar rag.harold.SyntheticData -o &lt;directory&gt; [options]
+ */
+@Command(name = "java -cp harold-1.0.jar rag.harold.SyntheticData",
+        description = "Writes a synthetic longitudinal dataset in bam-readcount format",
+        sortOptions = false)
+public class SyntheticData {
+    private static final String BASES = "ACGT";
+
+    @Option(names = {"-o", "--out"}, required = true, description = "Directory to write the count files, filelist and truth to")
+    File out;
+
+    @Option(names = {"--sites"}, description = "Genome length")
+    int sites = 10000;
+
+    @Option(names = {"--haplotypes"}, description = "Number of haplotypes")
+    int haplotypes = 3;
+
+    @Option(names = {"--timepoints"}, description = "Number of timepoints")
+    int timePoints = 4;
+
+    @Option(names = {"--frequencies"}, arity = "1..*", description = "Haplotype frequencies along the timepoints, as comma-separated vectors interpolated linearly from the first timepoint to the last (one vector is constant); default from 1/(i+1) to its reverse")
+    String[] frequencies;
+
+    @Option(names = {"--diversity"}, description = "Fraction of sites at which the haplotypes differ")
+    double diversity = 0.01;
+
+    @Option(names = {"--error-rate"}, description = "Expected fraction of reads showing a base no haplotype carries")
+    double errorRate = 0.003;
+
+    @Option(names = {"--dispersion"}, description = "Second alpha parameter of the error model; larger values spread the base proportions more between sites")
+    double dispersion = Constants.DEFAULT_ALPHA_1;
+
+    @Option(names = {"--depth"}, description = "Mean read depth of a site at a timepoint")
+    double depth = 500.0;
+
+    @Option(names = {"--depth-shape"}, description = "Gamma shape of the depth distribution; small values give uneven depth, large values nearly Poisson")
+    double depthShape = 5.0;
+
+    @Option(names = {"--strand-bias"}, description = "Probability that a read is on the forward strand")
+    double strandBias = 0.5;
+
+    @Option(names = {"-s", "--seed"}, description = "Seed for random number generator")
+    long seed = 1;
+
+    @Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help")
+    boolean helpRequested;
+
+    public static void main(String[] args) throws IOException {
+        SyntheticData data = new SyntheticData();
+        CommandLine cmd = new CommandLine(data);
+        try {
+            cmd.parse(args);
+        } catch (CommandLine.ParameterException ex) {
+            System.err.println(ex.getMessage());
+            cmd.usage(System.err);
+            System.exit(1);
+        }
+        if (cmd.isUsageHelpRequested()) {
+            cmd.usage(System.err);
+            return;
+        }
+        data.write();
+    }
+
+    /**
+     * First alpha parameter of the error model giving errorRate: a base no haplotype carries has expected
+     * proportion alphaE / (alpha0 + 3 alphaE) = (1 - a0) / (3 - 2 a0), a third of the error rate
+     */
+    double alpha0Param() {
+        return (3.0 - 3.0 * errorRate) / (3.0 - 2.0 * errorRate);
+    }
+
+    /**
+     * Frequencies of every haplotype at every timepoint
+     */
+    double[][] frequencyPaths() {
+        List<double[]> knots = new ArrayList<>();
+        if (frequencies == null) {
+            double[] first = new double[haplotypes];
+            double[] last = new double[haplotypes];
+            for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                first[iHaplo] = 1.0 / (iHaplo + 1);
+                last[haplotypes - 1 - iHaplo] = first[iHaplo];
+            }
+            knots.add(first);
+            knots.add(last);
+        } else {
+            for (String vector : frequencies) {
+                String[] values = vector.split(",");
+                if (values.length != haplotypes) {
+                    throw new IllegalArgumentException(String.format("Frequencies '%s' are not %d values", vector, haplotypes));
+                }
+                double[] knot = new double[haplotypes];
+                for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                    knot[iHaplo] = Double.parseDouble(values[iHaplo].trim());
+                }
+                knots.add(knot);
+            }
+        }
+        double[][] paths = new double[timePoints][haplotypes];
+        for (int iTimePoint = 0; iTimePoint < timePoints; iTimePoint++) {
+            double position = timePoints == 1 ? 0.0 : (knots.size() - 1) * iTimePoint / (double) (timePoints - 1);
+            int iKnot = Math.min((int) position, knots.size() - 1);
+            double along = position - iKnot;
+            double total = 0.0;
+            for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                double next = iKnot + 1 < knots.size() ? knots.get(iKnot + 1)[iHaplo] : knots.get(iKnot)[iHaplo];
+                paths[iTimePoint][iHaplo] = (1.0 - along) * knots.get(iKnot)[iHaplo] + along * next;
+                total += paths[iTimePoint][iHaplo];
+            }
+            for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                paths[iTimePoint][iHaplo] /= total;
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Writes the dataset to out, returning the count-file list
+     */
+    File write() throws IOException {
+        Path directory = out.toPath();
+        Files.createDirectories(directory);
+        RandomDataGenerator random = new RandomDataGenerator(new Well19937c(seed));
+        double[][] piHap = frequencyPaths();
+        double scale = (1.0 - dispersion) / dispersion;
+        double alpha0 = alpha0Param() * scale;
+        double alphaE = (1.0 - alpha0Param()) * scale;
+
+        int[][] genome = new int[haplotypes][sites];  // [haplotype][site] base
+        for (int iSite = 0; iSite < sites; iSite++) {
+            int reference = random.nextInt(0, 3);
+            int variant = (reference + random.nextInt(1, 3)) % 4;
+            int carriers = random.getRandomGenerator().nextDouble() < diversity && haplotypes > 1
+                    ? random.nextInt(1, (1 << haplotypes) - 2) : 0;   // a non-empty proper subset
+            for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                genome[iHaplo][iSite] = (carriers & (1 << iHaplo)) != 0 ? variant : reference;
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        double[] alphaObs = new double[4];
+        double[] proportions = new double[4];
+        int[][] counts = new int[2][4];
+        for (int iTimePoint = 0; iTimePoint < timePoints; iTimePoint++) {
+            String name = String.format("tp%02d.rc", iTimePoint);
+            names.add(name);
+            try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(name))) {
+                for (int iSite = 0; iSite < sites; iSite++) {
+                    long siteDepth = random.nextPoisson(random.nextGamma(depthShape, depth / depthShape) + 1.0E-9);
+                    if (siteDepth == 0) {
+                        continue;   // bam-readcount leaves out positions without reads
+                    }
+                    for (int iBase = 0; iBase < 4; iBase++) {
+                        double carried = 0.0;
+                        for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                            carried += genome[iHaplo][iSite] == iBase ? piHap[iTimePoint][iHaplo] : 0.0;
+                        }
+                        alphaObs[iBase] = alpha0 * carried + alphaE * (1.0 - carried);
+                    }
+                    int forward = random.nextBinomial((int) siteDepth, strandBias);
+                    drawStrand(random, alphaObs, proportions, forward, counts[0]);
+                    drawStrand(random, alphaObs, proportions, (int) siteDepth - forward, counts[1]);
+                    writeLine(writer, iSite + 1, genome[0][iSite], siteDepth, counts);
+                }
+            }
+        }
+        writeTruth(directory, piHap, genome, alpha0Param());
+        Path list = directory.resolve("filelist");   // last, so that a complete list means a complete dataset
+        Files.write(list, names);
+        System.out.printf("SyntheticData: %d sites, %d haplotypes, %d timepoints, alpha = [%.6f, %.6f] in %s\n",
+                sites, haplotypes, timePoints, alpha0Param(), dispersion, list);
+        return list.toFile();
+    }
+
+    /**
+     * Draws base proportions from the Dirichlet distribution with parameters alphaObs and then the reads of
+     * one strand from them
+     */
+    private static void drawStrand(RandomDataGenerator random, double[] alphaObs, double[] proportions, int reads,
+                                   int[] counts) {
+        double total = 0.0;
+        for (int iBase = 0; iBase < 4; iBase++) {
+            proportions[iBase] = random.nextGamma(alphaObs[iBase], 1.0);
+            total += proportions[iBase];
+        }
+        int remaining = reads;
+        double remainingShare = 1.0;
+        for (int iBase = 0; iBase < 4; iBase++) {   // multinomial as a chain of binomials
+            double share = total > 0.0 ? proportions[iBase] / total : 0.25;
+            if (iBase == 3 || remaining == 0) {
+                counts[iBase] = iBase == 3 ? remaining : 0;
+            } else {
+                counts[iBase] = random.nextBinomial(remaining, Math.min(1.0, Math.max(0.0, share / remainingShare)));
+            }
+            remaining -= counts[iBase];
+            remainingShare -= share;
+        }
+    }
+
+    private static void writeLine(BufferedWriter writer, int position, int reference, long depth, int[][] counts)
+            throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append("synthetic\t").append(position).append('\t').append(BASES.charAt(reference)).append('\t')
+                .append(depth).append("\t=:0:0.00:0.00:0.00:0:0:0.00:0.00:0.00:0:0.00:0.00:0.00");
+        for (int iBase = 0; iBase < 4; iBase++) {
+            line.append('\t').append(BASES.charAt(iBase)).append(':').append(counts[0][iBase] + counts[1][iBase])
+                    .append(":60.00:35.00:0.00:").append(counts[0][iBase]).append(':').append(counts[1][iBase])
+                    .append(":0.50:0.02:0.00:0:0.00:100.00:0.50");
+        }
+        line.append("\tN:0:0.00:0.00:0.00:0:0:0.00:0.00:0.00:0:0.00:0.00:0.00\n");
+        writer.write(line.toString());
+    }
+
+    private void writeTruth(Path directory, double[][] piHap, int[][] genome, double alpha0Param) throws IOException {
+        List<String> truth = new ArrayList<>();
+        truth.add(String.format("alpha\t%.8f\t%.8f", alpha0Param, dispersion));
+        for (int iTimePoint = 0; iTimePoint < timePoints; iTimePoint++) {
+            StringBuilder line = new StringBuilder(String.format("tp%02d", iTimePoint));
+            for (double frequency : piHap[iTimePoint]) {
+                line.append(String.format("\t%.6f", frequency));
+            }
+            truth.add(line.toString());
+        }
+        Files.write(directory.resolve("truth.txt"), truth);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("haplotypes.fasta"))) {
+            for (int iHaplo = 0; iHaplo < haplotypes; iHaplo++) {
+                writer.write(">haplotype" + iHaplo + "\n");
+                for (int iSite = 0; iSite < sites; iSite++) {
+                    writer.write(BASES.charAt(genome[iHaplo][iSite]));
+                    if (iSite % 60 == 59 || iSite == sites - 1) {
+                        writer.write('\n');
+                    }
+                }
+            }
+        }
+    }
+}
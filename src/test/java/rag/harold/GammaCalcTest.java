@@ -0,0 +1,174 @@
+package rag.harold;
+
+import org.apache.commons.math3.special.Gamma;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy of each {@link GammaCalc.Mode}: logGamma against Commons Math and rising factorials against a
+ * compensated sum of logs, over the range of arguments the likelihood uses, and the log-likelihood of a
+ * fit to a small SyntheticData dataset against COMMONS; and the size of the cache in front of them.
+ */
+public class GammaCalcTest {
+    private static final double[] ARGUMENTS = logSpaced(1.0E-4, 1.0E11, 301);
+    private static final int[] COUNTS = {0, 1, 2, 3, 8, 9, 17, 100, 1000, 10000, 100000};
+    private static final double LIKELIHOOD_TOLERANCE = 1.0E-6;  // relative to COMMONS
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void accurateLogGamma() {
+        assertTrue(maxLogGammaError(GammaCalc.Mode.ACCURATE) < 1.0E-14);
+    }
+
+    @Test
+    public void fastLogGamma() {
+        assertTrue(maxLogGammaError(GammaCalc.Mode.FAST) < 1.0E-9);
+    }
+
+    @Test
+    public void accurateRisingFactorial() {
+        assertTrue(maxRisingFactorialError(GammaCalc.Mode.ACCURATE) < 1.0E-14);
+    }
+
+    @Test
+    public void fastRisingFactorial() {
+        assertTrue(maxRisingFactorialError(GammaCalc.Mode.FAST) < 1.0E-9);
+    }
+
+    @Test
+    public void cachedMatchesEngine() {
+        for (GammaCalc.Mode mode : GammaCalc.Mode.values()) {
+            GammaCalc engine = GammaCalc.get(0, false, mode);
+            GammaCalc cached = GammaCalc.get(1024, false, mode);
+            for (double a : ARGUMENTS) {
+                assertEquals(engine.logGamma(a), cached.logGamma(a), 0.0);
+                assertEquals(engine.logGamma(a), cached.logGamma(a), 0.0);   // from the cache this time
+            }
+        }
+    }
+
+    @Test
+    public void cacheHoldsRequestedCapacity() {
+        for (int capacity : new int[]{1, 100, 511, 512, 1000, 4097, 1000000}) {
+            int expected = Math.max(GammaCache.WAYS, capacity / GammaCache.WAYS * GammaCache.WAYS);
+            GammaCache striped = (GammaCache) GammaCalc.get(capacity, false, GammaCalc.Mode.COMMONS);
+            GammaCache perThread = (GammaCache) GammaCalc.get(capacity, true, GammaCalc.Mode.COMMONS);
+            assertEquals("striped " + capacity, expected, striped.getCapacity());
+            assertEquals("per thread " + capacity, expected, perThread.getCapacity());
+        }
+    }
+
+    @Test
+    public void fittedLikelihood() throws IOException {
+        SyntheticData data = new SyntheticData();
+        data.out = folder.newFolder("synthetic");
+        data.sites = 2000;
+        data.haplotypes = 2;
+        data.timePoints = 3;
+        data.diversity = 0.05;
+        File countFile = withoutOutput(data::write);
+
+        double reference = optimise(countFile, data.haplotypes, GammaCalc.Mode.COMMONS);
+        for (GammaCalc.Mode mode : new GammaCalc.Mode[]{GammaCalc.Mode.ACCURATE, GammaCalc.Mode.FAST}) {
+            double logLikelihood = optimise(countFile, data.haplotypes, mode);
+            assertEquals(mode.toString(), reference, logLikelihood, LIKELIHOOD_TOLERANCE * Math.abs(reference));
+        }
+    }
+
+    private static double maxLogGammaError(GammaCalc.Mode mode) {
+        GammaCalc gamma = GammaCalc.get(0, false, mode);
+        double error = 0.0;
+        for (double x : ARGUMENTS) {
+            double expected = Gamma.logGamma(x);
+            error = Math.max(error, Math.abs(gamma.logGamma(x) - expected) / Math.max(1.0, Math.abs(expected)));
+        }
+        return error;
+    }
+
+    private static double maxRisingFactorialError(GammaCalc.Mode mode) {
+        GammaCalc gamma = GammaCalc.get(0, false, mode);
+        double error = 0.0;
+        for (double a : ARGUMENTS) {
+            for (int n : COUNTS) {
+                double expected = logRisingFactorial(a, n);
+                error = Math.max(error, Math.abs(gamma.logRisingFactorial(a, n) - expected) / Math.max(1.0, Math.abs(expected)));
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Optimises the haplotype frequencies of one cluster from the default start
+     */
+    private static double optimise(File countFile, int nHaplo, GammaCalc.Mode mode) throws IOException {
+        ForkJoinPool threadPool = new ForkJoinPool(1);
+        try {
+            return withoutOutput(() -> {
+                double[] alphaParams = {Constants.DEFAULT_ALPHA_0, Constants.DEFAULT_ALPHA_1};
+                Cluster cluster = new Cluster(countFile, nHaplo, alphaParams, GammaCalc.get(0, false, mode), 1L,
+                        threadPool, false, StateStore.heap(), false);
+                cluster.initialise();
+                cluster.run();
+                return cluster.calculateCurrent(alphaParams);
+            });
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    interface Action<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs action with the log messages on System.out suppressed
+     */
+    static <T> T withoutOutput(Action<T> action) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            return action.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Reference lgamma(a + n) - lgamma(a) as a Kahan-compensated sum of log(a + i)
+     */
+    private static double logRisingFactorial(double a, int n) {
+        double sum = 0.0;
+        double compensation = 0.0;
+        for (int i = 0; i < n; i++) {
+            double term = Math.log(a + i) - compensation;
+            double next = sum + term;
+            compensation = (next - sum) - term;
+            sum = next;
+        }
+        return sum;
+    }
+
+    private static double[] logSpaced(double from, double to, int n) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = from * Math.pow(to / from, i / (n - 1.0));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,99 @@
+package rag.harold;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The likelihood kernels of {@link Site} allocate nothing once warmed up.
+ * <p>
+ * The frequencies of every timepoint are switched back and forth between two values, as the optimisers do,
+ * and every kernel is evaluated over the variable site patterns after each switch. The bytes the calling
+ * thread allocates in a pass are read from the JVM's ThreadMXBean, and the median pass must allocate
+ * nothing: an allocating kernel does so on every pass, while the odd pass may allocate a few hundred bytes
+ * when JIT compilation deoptimises a method and materialises objects it had kept in registers.
+ */
+public class KernelAllocationTest {
+    private static final int WARM_UP = 10;
+    private static final int PASSES = 21;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void kernelsDoNotAllocate() throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        SyntheticData data = new SyntheticData();
+        data.out = folder.newFolder();
+        data.sites = 5000;
+        data.diversity = 0.05;
+        int nHaplo = data.haplotypes;
+        File countFile = GammaCalcTest.withoutOutput(data::write);
+
+        ForkJoinPool threadPool = new ForkJoinPool(1);
+        long[] passBytes = new long[PASSES];
+        try {
+            DataSet dataSet = GammaCalcTest.withoutOutput(() -> {
+                double[] alphaParams = {Constants.DEFAULT_ALPHA_0, Constants.DEFAULT_ALPHA_1};
+                Cluster cluster = new Cluster(countFile, nHaplo, alphaParams, GammaCalc.get(0, false, GammaCalc.Mode.ACCURATE),
+                        1L, threadPool, false, StateStore.heap(), false);
+                cluster.initialise();
+                cluster.calculateCurrent(alphaParams);
+                return cluster.getDataSet();
+            });
+            int[] sites = dataSet.getVariableSites();
+
+            double[][] hapParams = new double[2][nHaplo - 1];  // two sets of frequencies to switch between
+            for (int iParam = 0; iParam < nHaplo - 1; iParam++) {
+                hapParams[0][iParam] = 1.0 / (nHaplo - iParam);
+                hapParams[1][iParam] = 0.8 / (nHaplo - iParam);
+            }
+            double[] priors = dataSet.getPriors();
+            double[] sum = new double[nHaplo + 1];
+            long threadId = Thread.currentThread().getId();
+            for (int iPass = 0; iPass < WARM_UP + PASSES; iPass++) {
+                long before = threads.getThreadAllocatedBytes(threadId);
+                evaluate(dataSet, sites, hapParams[iPass % 2], priors, sum);
+                long bytes = threads.getThreadAllocatedBytes(threadId) - before;
+                if (iPass >= WARM_UP) {
+                    passBytes[iPass - WARM_UP] = bytes;
+                }
+            }
+        } finally {
+            threadPool.shutdown();
+        }
+
+        Arrays.sort(passBytes);
+        assertEquals("bytes allocated per pass (median)", 0L, passBytes[PASSES / 2]);
+    }
+
+    /**
+     * Sets new frequencies for every timepoint and runs every kernel over the sites
+     */
+    private static void evaluate(DataSet dataSet, int[] sites, double[] hapParams, double[] priors, double[] sum) {
+        Site site = dataSet.getSite();
+        for (int iTimePoint = 0; iTimePoint < dataSet.getNTimePoints(); iTimePoint++) {
+            dataSet.updateSingleHapParams(iTimePoint, hapParams);
+            for (int iSite : sites) {
+                site.computeSiteTimePointLogLikelihood(iSite, iTimePoint, priors);
+                site.addTimePointGradient(iSite, iTimePoint, priors, 1.0, sum);
+            }
+        }
+        for (int iSite : sites) {
+            site.computeSiteLogLikelihood(iSite, priors);
+            site.assignHaplotypes(iSite, priors);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package rag.harold;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link LikelihoodEngine} gives exactly what DataSet.assignHaplotypes gives for the same parameters, also
+ * when several threads evaluate different snapshots at once.
+ * <p>
+ * The expected log-likelihoods and assignment probabilities of two sets of parameters are taken from the
+ * DataSet one after the other; then every thread evaluates both snapshots in turn, with posteriors, on one
+ * engine and one shared ForkJoinPool.
+ */
+public class LikelihoodEngineTest {
+    private static final int THREADS = 4;
+    private static final int EVALUATIONS = 10;  // of each snapshot by each thread
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentSnapshotsMatchAssignHaplotypes() throws IOException, InterruptedException, ExecutionException {
+        SyntheticData data = new SyntheticData();
+        data.out = folder.newFolder();
+        data.sites = 3000;
+        data.diversity = 0.05;
+        int nHaplo = data.haplotypes;
+        File countFile = GammaCalcTest.withoutOutput(data::write);
+
+        ForkJoinPool threadPool = new ForkJoinPool(THREADS);
+        ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+        try {
+            double[] alphaParams = {Constants.DEFAULT_ALPHA_0, Constants.DEFAULT_ALPHA_1};
+            DataSet dataSet = GammaCalcTest.withoutOutput(() -> {
+                Cluster cluster = new Cluster(countFile, nHaplo, alphaParams, GammaCalc.get(0, false, GammaCalc.Mode.ACCURATE),
+                        1L, threadPool, false, StateStore.heap(), false);
+                cluster.initialise();
+                return cluster.getDataSet();
+            });
+            double[][][] hapParams = new double[2][data.timePoints][nHaplo - 1];
+            for (int iTimePoint = 0; iTimePoint < data.timePoints; iTimePoint++) {
+                for (int iParam = 0; iParam < nHaplo - 1; iParam++) {
+                    hapParams[0][iTimePoint][iParam] = 1.0 / (nHaplo - iParam);
+                    hapParams[1][iTimePoint][iParam] = 0.2 + 0.15 * iTimePoint + 0.1 * iParam;
+                }
+            }
+            double[][] alphas = {alphaParams, {0.99, 0.005}};
+
+            LikelihoodEngine engine = dataSet.getLikelihoodEngine();
+            LikelihoodEngine.Params[] snapshots = new LikelihoodEngine.Params[2];
+            double[] expected = new double[2];
+            double[][] expectedPosteriors = new double[2][];
+            for (int iSnapshot = 0; iSnapshot < 2; iSnapshot++) {
+                snapshots[iSnapshot] = dataSet.snapshot(hapParams[iSnapshot], alphas[iSnapshot]);
+                dataSet.updateAllParams(hapParams[iSnapshot], alphas[iSnapshot]);
+                expected[iSnapshot] = dataSet.assignHaplotypes();
+                DoubleBuffer probabilities = dataSet.getSite().getProbAssignment();
+                expectedPosteriors[iSnapshot] = new double[probabilities.capacity()];
+                probabilities.duplicate().get(expectedPosteriors[iSnapshot]);
+            }
+            int[] sites = dataSet.getVariableSites();
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int iThread = 0; iThread < THREADS; iThread++) {
+                int first = iThread % 2;
+                futures.add(callers.submit(() -> {
+                    for (int iEvaluation = 0; iEvaluation < 2 * EVALUATIONS; iEvaluation++) {
+                        int iSnapshot = (first + iEvaluation) % 2;
+                        LikelihoodEngine.Result result = engine.evaluate(snapshots[iSnapshot], true);
+                        assertEquals("snapshot " + iSnapshot, expected[iSnapshot], result.getLogLikelihood(), 0.0);
+                        int offset = 0;
+                        for (int iSite : sites) {
+                            double[] posteriors = result.getPosteriors(iSite);
+                            for (double posterior : posteriors) {
+                                assertEquals("site " + iSite, expectedPosteriors[iSnapshot][offset++], posterior, 0.0);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            callers.shutdown();
+            threadPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package rag.harold;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A run with worker processes on this machine reports exactly what a single process reports.
+ * <p>
+ * Main is run twice on a SyntheticData dataset, without workers and with two, and the results it prints,
+ * from the RESULTS banner to the final total likelihood, must be the same text: every likelihood,
+ * frequency and haplotype to the last digit.
+ */
+public class ShardsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void workersMatchSingleProcess() throws IOException {
+        SyntheticData data = new SyntheticData();
+        data.out = folder.newFolder();
+        data.sites = 2000;
+        data.haplotypes = 2;
+        data.timePoints = 3;
+        data.diversity = 0.05;
+        File countFile = GammaCalcTest.withoutOutput(data::write);
+
+        String single = run(countFile, data.haplotypes, 0);
+        String sharded = run(countFile, data.haplotypes, 2);
+        assertTrue(sharded, sharded.contains("Shards: 2 workers connected"));
+        assertEquals(results(single), results(sharded));
+    }
+
+    /**
+     * What Main prints with the given number of workers
+     */
+    private static String run(File countFile, int nHaplo, int nWorkers) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            Main.main(new String[]{"-c", countFile.getPath(), "-n", Integer.toString(nHaplo), "-s", "5",
+                    "--threads", "2", "--workers", Integer.toString(nWorkers)});
+        } finally {
+            System.setOut(out);
+        }
+        return new String(printed.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The results in a log, up to the final total likelihood
+     */
+    private static String results(String log) {
+        int start = log.indexOf("RESULTS");
+        int end = log.indexOf('\n', log.indexOf("Main: Final total likelihood"));
+        assertTrue(log, start >= 0 && end > start);
+        return log.substring(start, end);
+    }
+}
@@ -0,0 +1,83 @@
+package rag.harold;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The analytic gradient of {@link DataSet.TimePointObjective} against central differences of its value.
+ * <p>
+ * The objective is set up as a frequency round sets it, with the assignment probabilities of a first
+ * assignment on a SyntheticData dataset of four haplotypes, so both sums skip the assignments of
+ * probability 0.01 or less. The gradient is checked through the stick-breaking map at an interior point
+ * and at points with one parameter just above its lower bound.
+ */
+public class TimePointGradientTest {
+    private static final double STEP = 3.0E-4;        // step of the central differences, relative to min(x, 0.01)
+    private static final double TOLERANCE = 1.0E-6;   // relative to the largest derivative
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void gradientMatchesCentralDifferences() throws IOException {
+        SyntheticData data = new SyntheticData();
+        data.out = folder.newFolder();
+        data.sites = 3000;
+        data.haplotypes = 4;
+        data.timePoints = 2;
+        data.diversity = 0.05;
+        int nHaplo = data.haplotypes;
+        File countFile = GammaCalcTest.withoutOutput(data::write);
+
+        ForkJoinPool threadPool = new ForkJoinPool(1);
+        try {
+            double[] alphaParams = {Constants.DEFAULT_ALPHA_0, Constants.DEFAULT_ALPHA_1};
+            DataSet dataSet = GammaCalcTest.withoutOutput(() -> {
+                Cluster cluster = new Cluster(countFile, nHaplo, alphaParams, GammaCalc.get(0, false, GammaCalc.Mode.ACCURATE),
+                        1L, threadPool, false, StateStore.heap(), false);
+                cluster.initialise();
+                cluster.calculateCurrent(alphaParams);
+                return cluster.getDataSet();
+            });
+
+            double[][] interior = {{0.3, 0.45, 0.6}, {0.5, 0.2, 0.35}};
+            double[][] nearBound = {{0.4, 1.0E-4, 0.5}, {1.0E-4, 0.3, 0.7}};
+            for (double[][] hapParams : new double[][][]{interior, nearBound}) {
+                dataSet.setOptType(1, 0, hapParams, alphaParams, 0);
+                for (int iTimePoint = 0; iTimePoint < data.timePoints; iTimePoint++) {
+                    checkGradient(dataSet.timePointObjective(iTimePoint), hapParams[iTimePoint]);
+                }
+            }
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    private static void checkGradient(DataSet.TimePointObjective objective, double[] point) {
+        double[] gradient = new double[point.length];
+        double value = objective.valueAndGradient(point.clone(), gradient);
+        assertEquals("value", objective.value(point.clone()), value, 1.0E-9 * Math.abs(value));
+
+        double scale = 0.0;
+        for (double derivative : gradient) {
+            scale = Math.max(scale, Math.abs(derivative));
+        }
+        for (int iParam = 0; iParam < point.length; iParam++) {
+            double step = STEP * Math.min(point[iParam], 0.01);  // stays inside the bound, and out of roundoff
+            double[] above = point.clone();
+            double[] below = point.clone();
+            above[iParam] += step;
+            below[iParam] -= step;
+            double difference = (objective.value(above) - objective.value(below)) / (above[iParam] - below[iParam]);
+            assertEquals(Arrays.toString(point) + " parameter " + iParam, difference, gradient[iParam], TOLERANCE * scale);
+        }
+    }
+}